@@ -0,0 +1,304 @@
+package edu.isr.data;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.IntToDoubleFunction;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Micro-benchmarks for the hot paths of the ranking pipeline: distance measurement, neighbor search, weighting
+ * functions, rank computation and the full elimination loop. Each benchmark is run on the bundled normalized datasets
+ * and on synthetic folds of increasing size, sweeping the number of neighbors, the distance metric and the weighting
+ * function.
+ *
+ * Like JMH, each benchmark runs warm-up iterations before the measured ones, and the results of the benchmarked code are
+ * consumed by a sink so the JIT cannot discard them. The results are printed as CSV lines (benchmark, parameters, mean
+ * time per operation in nanoseconds, standard deviation, number of operations measured), which can be compared between
+ * versions.
+ *
+ * Usage: java -cp ISR.jar:bench edu.isr.data.Benchmarks [datasets_path] [name_regex]
+ */
+public class Benchmarks {
+    private static final String[] DATASETS = {"airfoil", "parkinsons", "towerData", "wineWhite"};
+    private static final int[] SYNTHETIC_SIZES = {250, 500, 1000, 2000};
+    private static final int SYNTHETIC_NUM_INPUTS = 8;
+
+    private static final int[] NUM_NEIGHBORS = {2, 5, 10, 20};
+    private static final double[] DIST_METRICS = {1, 2};
+    private static final String[] WEIGHTING_FUNCTIONS = {"proximity-x", "proximity-xy", "surrounding-x",
+            "surrounding-xy", "nonlinearity"};
+    private static final String[] RANKING_FUNCTIONS = {"proximity-x", "surrounding-xy", "remoteness-x",
+            "nonlinearity"};
+
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int MEASURED_ITERATIONS = 5;
+    private static final long TARGET_ITERATION_NANOS = 100_000_000L; // 100 ms
+
+    private static Pattern filter;
+    private static double sink; // consumes the results of the benchmarked code
+
+    /**
+     * Runs all benchmarks whose name matches the given regular expression.
+     * @param args Path to the folder containing the normalized folds (defaults to "../datasets/normalized/") and a
+     *             regular expression used to select the benchmarks (defaults to all of them).
+     * @throws Exception If some dataset could not be read.
+     */
+    public static void main(String[] args) throws Exception {
+        String datasetsPath = args.length > 0 ? args[0] : "../datasets/normalized/";
+        filter = Pattern.compile(args.length > 1 ? args[1] : ".*");
+
+        List<Fold> folds = new ArrayList<>();
+        List<String> foldNames = new ArrayList<>();
+
+        for (String dataset : DATASETS) {
+            File inFile = new File(datasetsPath, dataset + "-train-0.csv");
+            if (!inFile.isFile()) continue;
+
+            folds.add(InputHandler.readFold(inFile, 0));
+            foldNames.add(dataset);
+        }
+
+        for (int size : SYNTHETIC_SIZES) {
+            folds.add(createSyntheticFold(size, SYNTHETIC_NUM_INPUTS, 0));
+            foldNames.add("synthetic-" + size);
+        }
+
+        System.out.println("benchmark,params,ns_per_op,stddev,ops");
+
+        for (int f = 0; f < folds.size(); f++) {
+            Fold fold = folds.get(f);
+            String foldName = foldNames.get(f);
+
+            for (double distMetric : DIST_METRICS) {
+                benchMeasureDist(fold, foldName, distMetric);
+                benchMeasureDistBetweenInst(fold, foldName, distMetric);
+
+                for (int numNeighbors : NUM_NEIGHBORS) {
+                    benchFindNeighbors(fold, foldName, distMetric, numNeighbors);
+                    benchWeightingFunctions(fold, foldName, distMetric, numNeighbors);
+                }
+            }
+
+            benchGetRanks(fold, foldName);
+
+            for (String functionName : RANKING_FUNCTIONS)
+                for (int numNeighbors : NUM_NEIGHBORS)
+                    benchDetermineFinalRanks(fold, foldName, functionName, 2, numNeighbors);
+        }
+
+        if (sink == 42) System.out.println(); // keeps the sink alive
+    }
+
+    private static void benchMeasureDist(Fold fold, String foldName, double distMetric) {
+        int numInst = fold.getNumInst();
+        int numInputs = fold.getNumAttr() - 1;
+
+        measure("Utils.measureDist", foldName + " L" + distMetric, i -> Utils.measureDist(
+                fold.getInst(i % numInst).getInput(), fold.getInst((i * 31 + 7) % numInst).getInput(), numInputs,
+                distMetric));
+    }
+
+    private static void benchMeasureDistBetweenInst(Fold fold, String foldName, double distMetric) {
+        measureWithSetup("Fold.measureDistBetweenInst", foldName + " L" + distMetric, fold::copy,
+                copy -> copy.measureDistBetweenInst(distMetric));
+    }
+
+    private static void benchFindNeighbors(Fold fold, String foldName, double distMetric, int numNeighbors) {
+        if (!matches("Fold.findNeighbors")) return;
+
+        Fold copy = fold.copy();
+        copy.measureDistBetweenInst(distMetric);
+        int numInst = copy.getNumInst();
+
+        measure("Fold.findNeighbors", foldName + " L" + distMetric + " k" + numNeighbors,
+                i -> copy.searchNeighbors(i % numInst, numNeighbors)[0]);
+    }
+
+    private static void benchWeightingFunctions(Fold fold, String foldName, double distMetric, int numNeighbors) {
+        if (!matches("WeightingFunctions")) return;
+
+        Fold copy = fold.copy();
+        copy.measureDistBetweenInst(distMetric);
+        copy.findAllNeighbors(numNeighbors, 1);
+        int numInst = copy.getNumInst();
+
+        for (String functionName : WEIGHTING_FUNCTIONS) {
+            // the least-squares hyperplane needs more neighbors than input attributes
+            if (functionName.equals("nonlinearity") && numNeighbors <= copy.getNumAttr() - 1) continue;
+
+            measure("WeightingFunctions." + functionName, foldName + " L" + distMetric + " k" + numNeighbors,
+                    i -> WeightingFunctions.applyWeightingFunction(copy.getInst(i % numInst), functionName,
+                            distMetric, copy.getMetrics()));
+        }
+    }
+
+    private static void benchGetRanks(Fold fold, String foldName) {
+        Random random = new Random(0);
+        double[] weights = new double[fold.getNumInst()];
+        for (int i = 0; i < weights.length; i++)
+            weights[i] = random.nextDouble();
+
+        measure("InstanceWeighting.getRanks", foldName, i -> InstanceWeighting.getRanks(weights)[0]);
+    }
+
+    private static void benchDetermineFinalRanks(Fold fold, String foldName, String functionName, double distMetric,
+                                                 int numNeighbors) {
+        if (functionName.equals("nonlinearity") && numNeighbors <= fold.getNumAttr() - 1) return;
+
+        ParametersManager params = createParameters(functionName, distMetric, numNeighbors);
+
+        measureWithSetup("InstanceSelection.determineFinalRanks", foldName + " " + functionName + " L" + distMetric +
+                " k" + numNeighbors, () -> {
+            Fold copy = fold.copy();
+            InstanceWeighting.weighInstances(copy, params);
+            return copy;
+        }, copy -> InstanceSelection.determineFinalRanks(copy, params));
+    }
+
+    /**
+     * Measures a cheap operation, calling it as many times as necessary for each iteration to take about 100 ms.
+     * @param name Benchmark name.
+     * @param params Description of the benchmark parameters.
+     * @param op The operation, which receives the index of the call and returns a value to be consumed.
+     */
+    private static void measure(String name, String params, IntToDoubleFunction op) {
+        if (!matches(name)) return;
+
+        // calibrates the number of operations per iteration
+        int opsPerIteration = 1;
+        while (true) {
+            long start = System.nanoTime();
+            for (int i = 0; i < opsPerIteration; i++)
+                sink += op.applyAsDouble(i);
+            long elapsed = System.nanoTime() - start;
+
+            if (elapsed >= TARGET_ITERATION_NANOS / 10 || opsPerIteration >= 1 << 30) {
+                opsPerIteration = (int) Math.min(1L << 30,
+                        Math.max(1, opsPerIteration * TARGET_ITERATION_NANOS / Math.max(1, elapsed)));
+                break;
+            }
+
+            opsPerIteration *= 2;
+        }
+
+        double[] nanosPerOp = new double[MEASURED_ITERATIONS];
+
+        for (int iter = -WARMUP_ITERATIONS; iter < MEASURED_ITERATIONS; iter++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < opsPerIteration; i++)
+                sink += op.applyAsDouble(i);
+            long elapsed = System.nanoTime() - start;
+
+            if (iter >= 0) nanosPerOp[iter] = (double) elapsed / opsPerIteration;
+        }
+
+        report(name, params, nanosPerOp, (long) opsPerIteration * MEASURED_ITERATIONS);
+    }
+
+    /**
+     * Measures an expensive operation that needs a fresh state for each call. The preparation of the state is not
+     * included in the measured time.
+     * @param name Benchmark name.
+     * @param params Description of the benchmark parameters.
+     * @param setup Creates the state used by one call of the operation.
+     * @param op The operation.
+     * @param <T> Type of the state.
+     */
+    private static <T> void measureWithSetup(String name, String params, Supplier<T> setup, Consumer<T> op) {
+        if (!matches(name)) return;
+
+        double[] nanosPerOp = new double[MEASURED_ITERATIONS];
+
+        for (int iter = -WARMUP_ITERATIONS; iter < MEASURED_ITERATIONS; iter++) {
+            T state = setup.get();
+
+            long start = System.nanoTime();
+            op.accept(state);
+            long elapsed = System.nanoTime() - start;
+
+            sink += state.hashCode();
+            if (iter >= 0) nanosPerOp[iter] = elapsed;
+        }
+
+        report(name, params, nanosPerOp, MEASURED_ITERATIONS);
+    }
+
+    private static void report(String name, String params, double[] nanosPerOp, long numOps) {
+        double mean = 0;
+        for (double value : nanosPerOp)
+            mean += value;
+        mean /= nanosPerOp.length;
+
+        double variance = 0;
+        for (double value : nanosPerOp)
+            variance += (value - mean) * (value - mean);
+        double stdDev = Math.sqrt(variance / Math.max(1, nanosPerOp.length - 1));
+
+        System.out.println(String.format(Locale.ROOT, "%s,%s,%.1f,%.1f,%d", name, params, mean, stdDev, numOps));
+    }
+
+    private static boolean matches(String name) {
+        return filter.matcher(name).find();
+    }
+
+    /**
+     * Creates the parameters used by the ranking benchmarks. Nothing is written, so the paths are not used.
+     */
+    private static ParametersManager createParameters(String functionName, double distMetric, int numNeighbors) {
+        Properties properties = new Properties();
+        properties.setProperty("original.folds.path", ".");
+        properties.setProperty("normalized.folds.path", ".");
+        properties.setProperty("output.path", ".");
+        properties.setProperty("dataset.name", "benchmark");
+        properties.setProperty("weighting.function", functionName);
+        properties.setProperty("selection.levels", "0");
+        properties.setProperty("distance.metric", String.valueOf(distMetric));
+        properties.setProperty("number.neighbors", String.valueOf(numNeighbors));
+        properties.setProperty("combination.method", "cardinal");
+        properties.setProperty("number.threads", "1");
+
+        ParametersManager params = new ParametersManager();
+        try {
+            params.setParameters(properties);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+
+        return params;
+    }
+
+    /**
+     * Creates a fold with uniformly distributed inputs and a smooth nonlinear output.
+     * @param numInst Number of instances.
+     * @param numInputs Number of input attributes.
+     * @param seed Seed of the random number generator.
+     * @return The synthetic fold.
+     */
+    static Fold createSyntheticFold(int numInst, int numInputs, long seed) {
+        Random random = new Random(seed);
+        Fold fold = new Fold(0);
+
+        for (int i = 0; i < numInst; i++) {
+            double[] allAttrs = new double[numInputs + 1];
+
+            double output = 0;
+            for (int j = 0; j < numInputs; j++) {
+                allAttrs[j] = random.nextDouble();
+                output += Math.sin(3 * allAttrs[j]);
+            }
+            allAttrs[numInputs] = output / numInputs;
+
+            fold.addInst(new Instance(i, allAttrs, Arrays.copyOf(allAttrs, numInputs), allAttrs[numInputs]));
+        }
+
+        fold.setNumAttr(numInputs + 1);
+        return fold;
+    }
+}
@@ -0,0 +1,187 @@
+package edu.isr.data;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+/**
+ * Checks that the variants of the elimination that are meant to be exact give the same ranks as the plain one:
+ * <ul>
+ *   <li>the speculative elimination against the serial loop;</li>
+ *   <li>the pruned neighbor search against the distance matrix, with an even distance metric;</li>
+ *   <li>the incremental ranking against the ranking of all instances at once.</li>
+ * </ul>
+ * The checks run on a synthetic fold whose inputs lie on a coarse grid and which contains exact copies of some
+ * instances, so that many distances, neighbors and weights are tied and a different order of evaluation or tie-breaking
+ * would change the ranks. The fold is generated from a fixed seed, so the results are reproducible.
+ *
+ * Each comparison is printed as a CSV line (check, parameters, result, counters of the variant). The exit status is 1 if
+ * any ranks differ.
+ *
+ * Usage: java -cp ISR.jar:bench edu.isr.data.ExactnessCheck [num_instances]
+ */
+public class ExactnessCheck {
+    private static final int NUM_INPUTS = 3;
+    private static final int GRID_STEPS = 4; // each input is one of 0, 1/4, 2/4, 3/4 and 1
+    private static final int COPY_INTERVAL = 10; // every 10th instance is a copy of the previous one
+
+    private static final String[] WEIGHTING_FUNCTIONS = {"proximity-x", "surrounding-xy", "remoteness-x",
+            "nonlinearity"};
+    private static final String[] COMB_METHODS = {"cardinal", "ordinal"};
+    private static final int NUM_NEIGHBORS = 5; // more than the inputs, as required by the nonlinearity function
+    private static final int SPECULATED_ELIMINATIONS = 4;
+
+    private static int numFailures;
+
+    /**
+     * Runs all checks.
+     * @param args Number of instances of the synthetic fold (defaults to 300).
+     * @throws Exception If the parameters of some check are invalid.
+     */
+    public static void main(String[] args) throws Exception {
+        double[][] rows = createTiedRows(args.length > 0 ? Integer.parseInt(args[0]) : 300, 0);
+
+        System.out.println("check,params,result,counters");
+
+        for (String functionName : WEIGHTING_FUNCTIONS) {
+            for (String combMethod : COMB_METHODS) {
+                for (double distMetric : new double[]{1, 2}) {
+                    Properties serial = createParameters(functionName, combMethod, distMetric);
+                    serial.setProperty("neighbor.search", "matrix");
+
+                    Properties speculative = createParameters(functionName, combMethod, distMetric);
+                    speculative.setProperty("neighbor.search", "matrix");
+                    speculative.setProperty("elimination.speculation", String.valueOf(SPECULATED_ELIMINATIONS));
+                    speculative.setProperty("number.threads", String.valueOf(SPECULATED_ELIMINATIONS));
+
+                    compare("speculative-vs-serial", rows, serial, speculative);
+                }
+
+                Properties matrix = createParameters(functionName, combMethod, 2);
+                matrix.setProperty("neighbor.search", "matrix");
+
+                Properties pruned = createParameters(functionName, combMethod, 2);
+                pruned.setProperty("neighbor.search", "pruned");
+
+                compare("pruned-vs-matrix", rows, matrix, pruned);
+
+                compareIncremental(rows, createParameters(functionName, combMethod, 2));
+            }
+        }
+
+        if (numFailures > 0) {
+            System.out.println(numFailures + " checks failed.");
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Ranks the instances with two sets of parameters and compares the ranks.
+     * @param check Name of the check.
+     * @param rows The instances.
+     * @param reference Parameters of the reference ranking.
+     * @param variant Parameters of the ranking being checked.
+     * @throws Exception If some parameter is invalid.
+     */
+    private static void compare(String check, double[][] rows, Properties reference, Properties variant)
+            throws Exception {
+        Fold fold = prepareFold(rows, variant);
+        int[] variantRanks = InstanceRanking.rank(fold, getParams(variant), null).getRanks();
+        Metrics metrics = fold.getMetrics();
+
+        int[] referenceRanks = InstanceRanking.rank(rows, reference).getRanks();
+
+        report(check, reference, Arrays.equals(referenceRanks, variantRanks), String.format(Locale.ROOT,
+                "rollbacks=%d pruned_candidates=%d", metrics.getCount(Metrics.Counter.SPECULATION_ROLLBACKS),
+                metrics.getCount(Metrics.Counter.PRUNED_CANDIDATES)));
+    }
+
+    /**
+     * Ranks the first half of the instances and then all of them with an incremental ranking, and compares both ranks
+     * with those of the instances ranked at once.
+     * @param rows The instances.
+     * @param parameters Ranking parameters.
+     * @throws Exception If some parameter is invalid.
+     */
+    private static void compareIncremental(double[][] rows, Properties parameters) throws Exception {
+        double[][] firstHalf = Arrays.copyOf(rows, rows.length / 2);
+        double[][] secondHalf = Arrays.copyOfRange(rows, rows.length / 2, rows.length);
+
+        IncrementalRanking incremental = IncrementalRanking.create(firstHalf, parameters);
+        boolean sameRanks = Arrays.equals(InstanceRanking.rank(firstHalf, parameters).getRanks(), incremental.rank());
+
+        incremental.append(secondHalf);
+        sameRanks &= Arrays.equals(InstanceRanking.rank(rows, parameters).getRanks(), incremental.rank());
+
+        report("incremental-vs-full", parameters, sameRanks, "appended=" + secondHalf.length);
+    }
+
+    /**
+     * Prepares a fold as the in-memory ranking does, keeping it so that its counters can be read afterwards.
+     */
+    private static Fold prepareFold(double[][] rows, Properties parameters) throws Exception {
+        ParametersManager params = getParams(parameters);
+        Fold fold = InstanceRanking.toFold(rows, params);
+        EnginePlan.plan(List.of(fold), params, false);
+        return fold;
+    }
+
+    private static ParametersManager getParams(Properties parameters) throws Exception {
+        ParametersManager params = new ParametersManager();
+        params.setRankingParameters(parameters);
+        return params;
+    }
+
+    private static void report(String check, Properties parameters, boolean sameRanks, String counters) {
+        System.out.println(String.format(Locale.ROOT, "%s,%s %s L%s k%s,%s,%s", check,
+                parameters.getProperty("weighting.function"), parameters.getProperty("combination.method"),
+                parameters.getProperty("distance.metric"), parameters.getProperty("number.neighbors"),
+                sameRanks ? "same" : "DIFFERENT", counters));
+
+        if (!sameRanks) numFailures++;
+    }
+
+    private static Properties createParameters(String functionName, String combMethod, double distMetric) {
+        Properties properties = new Properties();
+        properties.setProperty("weighting.function", functionName);
+        properties.setProperty("distance.metric", String.valueOf(distMetric));
+        properties.setProperty("number.neighbors", String.valueOf(NUM_NEIGHBORS));
+        properties.setProperty("combination.method", combMethod);
+        properties.setProperty("number.threads", "1");
+        return properties;
+    }
+
+    /**
+     * Creates instances whose inputs lie on a grid, with an output that only takes a few values, and with exact copies
+     * of some instances.
+     * @param numInst Number of instances.
+     * @param seed Seed of the random number generator.
+     * @return The attributes of each instance: the inputs followed by the output.
+     */
+    static double[][] createTiedRows(int numInst, long seed) {
+        Random random = new Random(seed);
+        double[][] rows = new double[numInst][];
+
+        for (int i = 0; i < numInst; i++) {
+            if (i % COPY_INTERVAL == COPY_INTERVAL - 1) {
+                rows[i] = rows[i - 1].clone();
+                continue;
+            }
+
+            double[] allAttrs = new double[NUM_INPUTS + 1];
+
+            double output = 0;
+            for (int j = 0; j < NUM_INPUTS; j++) {
+                allAttrs[j] = (double) random.nextInt(GRID_STEPS + 1) / GRID_STEPS;
+                output += Math.sin(3 * allAttrs[j]);
+            }
+            allAttrs[NUM_INPUTS] = Math.round(output / NUM_INPUTS * GRID_STEPS) / (double) GRID_STEPS;
+
+            rows[i] = allAttrs;
+        }
+
+        return rows;
+    }
+}
@@ -0,0 +1,237 @@
+package edu.isr;
+
+import edu.isr.data.EnginePlan;
+import edu.isr.data.Fold;
+import edu.isr.data.FoldCache;
+import edu.isr.data.ParametersManager;
+import edu.isr.data.ResultCache;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.Option;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+/**
+ * Runs a set of configurations (parameter files) on a list of datasets in a single process. Each fold of each
+ * (dataset, configuration) pair is an independent unit of work: the folds are read by I/O threads, which block cheaply
+ * while waiting, and ranked by a bounded pool of compute workers. Before a fold is handed to a worker, the memory it
+ * needs (dominated by the n^2 distance matrix) is reserved from a memory budget, so large folds wait for each other
+ * instead of running out of memory together. Folds larger than the whole budget run alone.
+ *
+ * The results of each configuration are written exactly as when it is run by {@link Main}, so configurations sharing
+ * the same output folder and dataset are rejected, as are those that share the distances between folds, which needs all
+ * the folds of a dataset at once. Since several folds run at the same time, the "number.threads" parameter defaults to
+ * 1 instead of the number of processors, unless the parameter file sets it.
+ */
+public class BatchRunner {
+    /**
+     * Runs the batch and exits with status 1 if any configuration failed.
+     * @param args Command line arguments: [-w workers] [-m memory_mb] datasets parameter_file [parameter_file ...],
+     *             where datasets is a comma-separated list of dataset names, which replace the "dataset.name" parameter.
+     */
+    public static void main(String[] args) {
+        long startTime = System.currentTimeMillis();
+
+        Options options = new Options();
+        options.addOption(Option.builder("w").hasArg().desc("Number of compute workers").build());
+        options.addOption(Option.builder("m").hasArg().desc("Memory budget of the folds being ranked, in MB").build());
+
+        int numWorkers;
+        long memoryBudget;
+        String[] positionalArgs;
+
+        try {
+            CommandLine parsedArgs = new DefaultParser().parse(options, args);
+
+            numWorkers = Integer.parseInt(parsedArgs.getOptionValue("w",
+                    String.valueOf(Runtime.getRuntime().availableProcessors())));
+            memoryBudget = parsedArgs.hasOption("m") ? Long.parseLong(parsedArgs.getOptionValue("m")) << 20 :
+                    Runtime.getRuntime().maxMemory() / 4 * 3; // leaves some room for the rest of the process
+            positionalArgs = parsedArgs.getArgs();
+        } catch (ParseException | NumberFormatException e) {
+            positionalArgs = new String[0];
+            numWorkers = 0;
+            memoryBudget = 0;
+        }
+
+        if (positionalArgs.length < 2 || numWorkers < 1 || memoryBudget < 1) {
+            System.out.println("Usage: java -cp ISR.jar edu.isr.BatchRunner [-w workers] [-m memory_mb] " +
+                    "dataset[,dataset...] parameter_file [parameter_file ...]");
+            System.exit(1);
+        }
+
+        boolean success;
+        try {
+            success = runBatch(positionalArgs, numWorkers, memoryBudget);
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            success = false;
+        }
+
+        long endTime = System.currentTimeMillis();
+        System.out.println("Elapsed time: " + ((endTime - startTime) / 1000) + " seconds.\n");
+
+        if (!success) System.exit(1);
+    }
+
+    /**
+     * Sets up all the experiments and runs their folds.
+     * @param args Positional arguments: comma-separated dataset names followed by the parameter files.
+     * @param numWorkers Number of folds ranked at the same time.
+     * @param memoryBudget Maximum memory, in bytes, reserved by the folds being ranked.
+     * @return True if all experiments succeeded.
+     * @throws Exception If some parameter file could not be read or is invalid, or if two configurations would write
+     * to the same files.
+     */
+    private static boolean runBatch(String[] args, int numWorkers, long memoryBudget) throws Exception {
+        // folds of a dataset are read once for all configurations, within a quarter of the heap
+        FoldCache foldCache = new FoldCache(Runtime.getRuntime().maxMemory() / 4);
+        List<ExperimentManager> experiments = new ArrayList<>();
+        Set<String> outputs = new HashSet<>();
+
+        for (String datasetName : args[0].split(",")) {
+            for (int i = 1; i < args.length; i++) {
+                Properties parameters = ParametersManager.readParameterFile(args[i]);
+                parameters.setProperty("dataset.name", datasetName.trim());
+
+                // the workers already run one fold per processor
+                parameters.putIfAbsent("number.threads", "1");
+
+                ExperimentManager experiment = new ExperimentManager(parameters, foldCache);
+
+                // the folds are read and ranked one at a time, so their distances cannot be measured together
+                if (experiment.getParams().getDistanceSharing())
+                    throw new IllegalArgumentException("The distance sharing is not supported by the batch runner: " +
+                            args[i] + ".");
+
+                if (!outputs.add(experiment.getOutputFolder() + "/" + datasetName.trim()))
+                    throw new IllegalArgumentException("More than one configuration would write the results of " +
+                            datasetName.trim() + " in " + experiment.getOutputFolder() + ".");
+
+                experiments.add(experiment);
+            }
+        }
+
+        // without virtual threads (JDK 21), the I/O stages use a pool that creates threads as needed
+        ExecutorService ioPool = Executors.newCachedThreadPool();
+        ExecutorService computePool = Executors.newFixedThreadPool(numWorkers);
+        MemoryBudget budget = new MemoryBudget(memoryBudget);
+
+        List<CompletableFuture<Void>> results = new ArrayList<>();
+        for (ExperimentManager experiment : experiments)
+            results.add(CompletableFuture.runAsync(() -> runExperiment(experiment, computePool, budget), ioPool));
+
+        boolean success = true;
+        for (int i = 0; i < results.size(); i++) {
+            try {
+                results.get(i).join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause() instanceof UncheckedIOException ? e.getCause().getCause() : e.getCause();
+                System.out.println("Error in " + experiments.get(i).getParams().getDatasetName() + " (" +
+                        experiments.get(i).getOutputFolder() + "): " +
+                        (cause.getMessage() != null ? cause.getMessage() : cause.toString()));
+                success = false;
+            }
+        }
+
+        ioPool.shutdown();
+        computePool.shutdown();
+        return success;
+    }
+
+    /**
+     * Reads the folds of an experiment one at a time and submits each one to the compute workers as soon as its memory
+     * is reserved. Runs in an I/O thread, which waits for all folds and then writes the metrics of the experiment.
+     * @param experiment The experiment.
+     * @param computePool The compute workers.
+     * @param budget The memory budget.
+     */
+    private static void runExperiment(ExperimentManager experiment, ExecutorService computePool, MemoryBudget budget) {
+        try {
+            ResultCache resultCache = ResultCache.open(experiment.getParams()); // null if the cache is disabled
+
+            List<Fold> normFolds = new ArrayList<>();
+            List<CompletableFuture<Void>> foldResults = new ArrayList<>();
+
+            Fold[] folds;
+            for (int foldId = 0; (folds = experiment.readTrFold(foldId)) != null; foldId++) {
+                Fold origFold = folds[0];
+                Fold normFold = folds[1];
+                long memory = EnginePlan.estimateRankingMemory(normFold, experiment.getParams());
+
+                budget.reserve(memory); // the next fold is only read after this one is admitted
+
+                normFolds.add(normFold);
+                foldResults.add(CompletableFuture.runAsync(() -> {
+                    try {
+                        experiment.processFold(origFold, normFold, resultCache);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    } finally {
+                        budget.release(memory);
+                    }
+                }, computePool));
+            }
+
+            if (normFolds.isEmpty())
+                throw new IOException("Training folds not found.");
+
+            CompletableFuture.allOf(foldResults.toArray(new CompletableFuture<?>[0])).join();
+            experiment.logMetrics(normFolds);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Amount of memory that can be reserved by the folds being ranked. Reservations are served in order of arrival,
+     * so a large fold is not starved by a stream of small ones.
+     */
+    private static final class MemoryBudget {
+        private final Semaphore kilobytes;
+        private final int totalKilobytes;
+
+        MemoryBudget(long bytes) {
+            totalKilobytes = (int) Math.min(Integer.MAX_VALUE, Math.max(1, bytes >> 10));
+            kilobytes = new Semaphore(totalKilobytes, true);
+        }
+
+        /**
+         * Waits until some memory is available and reserves it.
+         * @param bytes Amount of memory. Amounts larger than the budget reserve the whole budget.
+         * @throws InterruptedException If the thread was interrupted while waiting.
+         */
+        void reserve(long bytes) throws InterruptedException {
+            kilobytes.acquire(toPermits(bytes));
+        }
+
+        /**
+         * Releases memory previously reserved.
+         * @param bytes Amount of memory, as passed to {@link #reserve(long)}.
+         */
+        void release(long bytes) {
+            kilobytes.release(toPermits(bytes));
+        }
+
+        private int toPermits(long bytes) {
+            return (int) Math.min(totalKilobytes, Math.max(1, (bytes + 1023) >> 10));
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package edu.isr;
+
+import edu.isr.data.ParametersManager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.Properties;
+
+/**
+ * Submits an experiment to a running {@link ExperimentServer} and waits for it to finish. The parameter file (merged
+ * with its parent files) is read by the client, so the server receives all the parameters at once. Paths in the
+ * parameter file are resolved by the server, so they should be absolute.
+ */
+public class ExperimentClient {
+    /**
+     * Sends the parameters and prints the answer of the server. The exit status is 1 if the experiment failed.
+     * @param args Command line arguments: parameter file and port of the server.
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.out.println("Usage: java -cp ISR.jar edu.isr.ExperimentClient parameter_file port");
+            System.exit(1);
+        }
+
+        try {
+            Properties parameters = ParametersManager.readParameterFile(args[0]);
+            StringWriter serializedParameters = new StringWriter();
+            parameters.store(serializedParameters, null);
+
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), Integer.parseInt(args[1]));
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                 DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                out.writeUTF(serializedParameters.toString());
+                out.flush();
+
+                String reply = in.readUTF();
+                System.out.println(reply.substring(reply.indexOf(' ') + 1));
+
+                if (reply.startsWith("ERROR")) System.exit(1);
+            }
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
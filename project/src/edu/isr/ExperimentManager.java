@@ -1,14 +1,21 @@
 package edu.isr;
 
+import edu.isr.data.EnginePlan;
 import edu.isr.data.Fold;
+import edu.isr.data.FoldCache;
 import edu.isr.data.InputHandler;
+import edu.isr.data.InputReduction;
 import edu.isr.data.InstanceSelection;
-import edu.isr.data.InstanceWeighting;
 import edu.isr.data.OutputHandler;
 import edu.isr.data.ParametersManager;
+import edu.isr.data.ResultCache;
+import edu.isr.data.SharedDistances;
+import edu.isr.data.SpaceFillingCurve;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
 
 /**
  * Responsible for triggering the main operations during the experiment.
@@ -16,6 +23,7 @@ import java.util.ArrayList;
 class ExperimentManager {
     private final String expId;
     private final ParametersManager params = new ParametersManager();
+    private final FoldCache foldCache; // null unless the experiment is run by the server
 
     /**
      * Parses the command line and set all the parameters necessary for running the experiment.
@@ -27,11 +35,61 @@ class ExperimentManager {
         params.parseCommandLine(args);
         params.setParameters();
 
-        expId = params.getWeightingFunction() + "-L" + params.getDistMetric() + "-k" + params.getNumNeighbors();
+        foldCache = null;
+        expId = setUp();
+    }
+
+    /**
+     * Sets all the parameters necessary for running the experiment from a set of properties, as received by the
+     * experiment server.
+     * @param parameters The parameters, using the same names as in the parameter file.
+     * @param foldCache Cache of the folds already read by the server.
+     * @throws Exception If required parameters are not provided correctly or if some error occurs while creating files.
+     */
+    ExperimentManager(Properties parameters, FoldCache foldCache) throws Exception {
+        params.setParameters(parameters);
+
+        this.foldCache = foldCache;
+        expId = setUp();
+    }
+
+    /**
+     * Logs the loaded parameters and creates the output folders.
+     * @return The experiment identifier.
+     * @throws IOException If some error occurs while creating the log file or the output folders.
+     */
+    private String setUp() throws IOException {
+        String expId = getExpId(params);
 
         // registers and displays the loaded parameters
         OutputHandler.logLoadedParameters(expId, params);
         OutputHandler.printLoadedParameters(params);
+
+        OutputHandler.createOutputFolders(expId, params);
+        return expId;
+    }
+
+    /**
+     * Builds the experiment identifier, which names the folder where its results are written.
+     * @param params Experiment parameters.
+     * @return Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
+     */
+    private static String getExpId(ParametersManager params) {
+        return params.getWeightingFunction() + "-L" + params.getDistMetric() + "-k" + params.getNumNeighbors();
+    }
+
+    /**
+     * Identifies the results an experiment would write, without setting it up, so that experiments writing the same
+     * files are not run at the same time.
+     * @param parameters The parameters, using the same names as in the parameter file.
+     * @return The output folder of the experiment, followed by the dataset name.
+     * @throws Exception If required parameters are not provided correctly.
+     */
+    static String getOutputKey(Properties parameters) throws Exception {
+        ParametersManager params = new ParametersManager();
+        params.setParameters(parameters);
+
+        return params.getOutPath() + getExpId(params) + "/" + params.getDatasetName();
     }
 
     /**
@@ -39,8 +97,8 @@ class ExperimentManager {
      * @throws IOException If some error occurs while creating the output files.
      */
     void runExperiment() throws IOException {
-        ArrayList<Fold> origTrFolds = InputHandler.readTrFolds(params, "orig");
-        ArrayList<Fold> normTrFolds = InputHandler.readTrFolds(params, "norm");
+        ArrayList<Fold> origTrFolds = InputHandler.readTrFolds(params, "orig", foldCache);
+        ArrayList<Fold> normTrFolds = InputHandler.readTrFolds(params, "norm", foldCache);
 
         int numOrigTrFolds = origTrFolds.size();
         int numNormTrFolds = normTrFolds.size();
@@ -49,10 +107,101 @@ class ExperimentManager {
         assert numNormTrFolds > 0 : "normalized training folds not found.";
         assert numOrigTrFolds == numNormTrFolds : "number of original and normalized training folds should be the same";
 
+        // the distances are measured in the reduced input space and in the order of the curve, if they were given
+        for (Fold normTrFold : normTrFolds) {
+            InputReduction.reduce(normTrFold, params);
+            SpaceFillingCurve.reorder(normTrFold, params);
+        }
+
+        // chooses how the neighbors are searched, unless the parameter file sets it
+        OutputHandler.logEnginePlan(expId, params, EnginePlan.plan(normTrFolds, params));
+
+        ResultCache resultCache = ResultCache.open(params); // null if the cache is disabled
+
+        // null if the distances are measured separately for each fold
+        SharedDistances sharedDistances = params.getDistanceSharing() ?
+                SharedDistances.measure(normTrFolds, params) : null;
+
         for (int i = 0; i < numOrigTrFolds; i++) {
-            System.out.println("Working on fold " + origTrFolds.get(i).getFoldId() + "...");
-            InstanceWeighting.rankInstances(normTrFolds.get(i), expId, params);
-            InstanceSelection.selectInstances(origTrFolds.get(i), normTrFolds.get(i), expId, params);
+            if (sharedDistances != null) sharedDistances.assignDistances(normTrFolds.get(i));
+
+            processFold(origTrFolds.get(i), normTrFolds.get(i), resultCache);
+            OutputHandler.logMetrics(expId, params, normTrFolds.subList(0, i + 1));
         }
     }
+
+    /**
+     * Reads the original and the normalized versions of a training fold.
+     * @param foldId The fold identifier.
+     * @return The original and the normalized folds, in this order, or null if there is no fold with this identifier.
+     * @throws IOException If some error occurs while reading the folds.
+     */
+    Fold[] readTrFold(int foldId) throws IOException {
+        Fold origFold = InputHandler.readTrFold(params, "orig", foldId, foldCache);
+        Fold normFold = InputHandler.readTrFold(params, "norm", foldId, foldCache);
+
+        if (origFold == null && normFold == null) return null;
+        if (origFold == null || normFold == null)
+            throw new IOException("Fold " + foldId + " of " + params.getDatasetName() + " should have both an " +
+                    "original and a normalized version.");
+
+        InputReduction.reduce(normFold, params);
+        SpaceFillingCurve.reorder(normFold, params);
+
+        // the folds are read one at a time, so the neighbor search is chosen from the first one
+        if (foldId == 0) OutputHandler.logEnginePlan(expId, params, EnginePlan.plan(List.of(normFold), params));
+
+        return new Fold[]{origFold, normFold};
+    }
+
+    /**
+     * Ranks the instances of a fold (or takes the ranks from the result cache) and writes the selected instances.
+     * @param origFold Set of instances on which the the selection will be applied after the ranking process.
+     * @param normFold Set of instances to be weighted.
+     * @param resultCache The result cache, or null if it is disabled.
+     * @throws IOException If some error occurs while creating the output files.
+     */
+    void processFold(Fold origFold, Fold normFold, ResultCache resultCache) throws IOException {
+        System.out.println("Working on fold " + origFold.getFoldId() + "...");
+
+        if (resultCache != null && resultCache.restore(normFold, expId, params)) {
+            // the fold was already ranked with the same parameters, so only the selection is applied
+            InstanceSelection.writeSelection(origFold, normFold, expId, params);
+        } else {
+            double[] weights = InstanceSelection.selectInstances(origFold, normFold, expId, params);
+
+            if (resultCache != null) resultCache.store(normFold, weights, params);
+        }
+
+        // the loading time of the original fold is registered together with the other metrics of the fold
+        normFold.getMetrics().addAll(origFold.getMetrics());
+
+        // the next fold only fits in the heap estimated by the engine plan if the distances of this one are released
+        normFold.releaseDistances();
+    }
+
+    /**
+     * Writes the metrics of the folds already processed.
+     * @param normFolds The normalized folds, in the order of their identifiers.
+     * @throws IOException If some error occurs while creating the metrics file.
+     */
+    void logMetrics(List<Fold> normFolds) throws IOException {
+        OutputHandler.logMetrics(expId, params, normFolds);
+    }
+
+    /**
+     * Gets the parameters of the experiment.
+     * @return The experiment parameters.
+     */
+    ParametersManager getParams() {
+        return params;
+    }
+
+    /**
+     * Gets the folder where the results of the experiment are written.
+     * @return The path to the output folder.
+     */
+    String getOutputFolder() {
+        return params.getOutPath() + expId;
+    }
 }
@@ -0,0 +1,152 @@
+package edu.isr;
+
+import edu.isr.data.FoldCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Long-lived process that runs the experiments submitted by {@link ExperimentClient}, so the cost of starting the JVM,
+ * loading the classes and warming up the JIT compiler is paid only once for a whole sweep of configurations. The folds
+ * read by an experiment are kept in memory for the next ones. The results are written exactly as when the experiment is
+ * run by {@link Main}.
+ *
+ * The server only accepts connections from the local machine. Each request carries the parameters of an experiment
+ * and is answered when the experiment finishes. At most a given number of experiments run at the same time; the other
+ * ones wait in a queue. As in {@link BatchRunner}, an experiment is rejected while another one that writes the results
+ * of the same dataset in the same output folder is queued or running. The folds kept in memory are limited to a given
+ * size, and the least recently used ones are discarded first.
+ */
+public class ExperimentServer {
+    /**
+     * Starts the server, which runs until the process is terminated.
+     * @param args Command line arguments: port and, optionally, the maximum number of experiments running at the same
+     *             time (1 by default) and the size of the folds kept in memory, in MB (a quarter of the heap by
+     *             default).
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 3) {
+            System.out.println("Usage: java -cp ISR.jar edu.isr.ExperimentServer port [max_jobs [fold_cache_mb]]");
+            System.exit(1);
+        }
+
+        int port = Integer.parseInt(args[0]);
+        int maxJobs = args.length >= 2 ? Integer.parseInt(args[1]) : 1;
+        long foldCacheSize = args.length == 3 ? Long.parseLong(args[2]) << 20 : Runtime.getRuntime().maxMemory() / 4;
+
+        FoldCache foldCache = new FoldCache(foldCacheSize);
+        ExecutorService jobs = Executors.newFixedThreadPool(maxJobs);
+        Set<String> outputs = ConcurrentHashMap.newKeySet(); // results written by the experiments queued or running
+
+        try (ServerSocket serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.out.println("Waiting for experiments on port " + port + " (at most " + maxJobs +
+                    " running at the same time).\n");
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+
+                // the connection is kept open until the experiment finishes, so each client has its own thread
+                Thread handler = new Thread(() -> handleClient(socket, jobs, foldCache, outputs));
+                handler.setDaemon(true);
+                handler.start();
+            }
+        } catch (IOException e) {
+            System.out.println("Error while listening on port " + port + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Receives the parameters of an experiment, waits for the experiment to run and answers with "OK" followed by the
+     * elapsed time or with "ERROR" followed by the error message.
+     * @param socket Connection with the client.
+     * @param jobs Executor that limits the number of experiments running at the same time.
+     * @param foldCache Folds already read by the server.
+     * @param outputs Results written by the experiments queued or running, as given by
+     *                {@link ExperimentManager#getOutputKey(Properties)}.
+     */
+    private static void handleClient(Socket socket, ExecutorService jobs, FoldCache foldCache, Set<String> outputs) {
+        try (Socket client = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(client.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(client.getOutputStream()))) {
+            Properties parameters = new Properties();
+            parameters.load(new StringReader(in.readUTF()));
+
+            String output = null;
+            String reply;
+            try {
+                output = ExperimentManager.getOutputKey(parameters);
+
+                // two experiments writing the same files at the same time would overwrite each other's results
+                if (!outputs.add(output)) {
+                    reply = "ERROR Another experiment is already writing the results of " + output + ".";
+                    output = null;
+                } else {
+                    Future<Long> elapsedTime = jobs.submit(() -> runExperiment(parameters, foldCache));
+                    reply = "OK Elapsed time: " + (elapsedTime.get() / 1000) + " seconds.";
+                }
+            } catch (ExecutionException e) {
+                // assertion errors are also reported to the client, and the server keeps running
+                reply = getErrorReply(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                reply = getErrorReply(e);
+            } catch (Exception | AssertionError e) {
+                // the parameters could not be read
+                reply = getErrorReply(e);
+            } finally {
+                if (output != null) outputs.remove(output);
+            }
+
+            if (reply.startsWith("ERROR")) System.out.println(reply.substring("ERROR ".length()));
+
+            out.writeUTF(reply);
+            out.flush();
+        } catch (IOException e) {
+            System.out.println("Error while communicating with a client: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Builds the reply to a failed experiment.
+     * @param cause The error.
+     * @return "ERROR" followed by the error message.
+     */
+    private static String getErrorReply(Throwable cause) {
+        return "ERROR " + (cause.getMessage() != null ? cause.getMessage() : cause.toString());
+    }
+
+    /**
+     * Runs an experiment.
+     * @param parameters The experiment parameters.
+     * @param foldCache Folds already read by the server.
+     * @return The elapsed time, in milliseconds.
+     * @throws Exception If required parameters are not provided correctly or if some error occurs while reading or
+     * creating files.
+     */
+    private static long runExperiment(Properties parameters, FoldCache foldCache) throws Exception {
+        long startTime = System.currentTimeMillis();
+
+        ExperimentManager experimentManager = new ExperimentManager(parameters, foldCache);
+        experimentManager.runExperiment();
+
+        long elapsedTime = System.currentTimeMillis() - startTime;
+        System.out.println("Elapsed time: " + (elapsedTime / 1000) + " seconds.\n");
+
+        return elapsedTime;
+    }
+}
@@ -0,0 +1,34 @@
+package edu.isr;
+
+import edu.isr.data.InstanceSelection;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+/**
+ * Obtains the instances kept in a selection level from a rank file (written when the output mode is "ranks"), so the
+ * sets of selected instances do not need to be stored for every selection level.
+ */
+public class SelectionFilter {
+    /**
+     * Writes the selected instances in the output file or, if it is not provided, in the standard output.
+     * @param args Command line arguments: fold file, rank file, selection level and, optionally, the output file.
+     */
+    public static void main(String[] args) {
+        if (args.length < 3 || args.length > 4) {
+            System.out.println("Usage: java -cp ISR.jar edu.isr.SelectionFilter fold_file rank_file selection_level " +
+                    "[output_file]");
+            System.exit(1);
+        }
+
+        try (OutputStream out = args.length == 4 ?
+                new BufferedOutputStream(new FileOutputStream(args[3]), 1 << 16) :
+                new BufferedOutputStream(System.out, 1 << 16)) {
+            InstanceSelection.filterInstances(args[0], args[1], Double.parseDouble(args[2]), out);
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package edu.isr.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * New neighbors and weights of the associates of an eliminated instance. They only depend on the distance matrix, so
+ * they are computed first, without modifying the fold, and then applied to the fold in the order of the associates list.
+ */
+class AssociatesUpdate {
+    private final List<Instance> associates;
+    private final int[][] neighborsIds;
+    private final double[] newWeights; // null if the weights are not updated one by one (ordinal remoteness)
+    private final Metrics metrics = new Metrics(); // operations performed while computing the update
+
+    /**
+     * Computes the new neighbors and, optionally, the new weights of a list of associates.
+     * @param fold The fold with all training instances.
+     * @param associates The associates of the eliminated instance.
+     * @param excludedIds Ids of instances considered ranked besides the ones already ranked in the distance matrix (see
+     *                    {@link Fold#searchNeighbors(int, int, int[], Metrics)}).
+     * @param reweigh Indicates if the new weights of the associates should be computed.
+     * @param params Experiment parameters.
+     * @param numThreads Number of threads among which the associates are divided.
+     */
+    AssociatesUpdate(Fold fold, List<Instance> associates, int[] excludedIds, boolean reweigh,
+                     ParametersManager params, int numThreads) {
+        int numAssociates = associates.size();
+
+        this.associates = associates;
+        this.neighborsIds = new int[numAssociates][];
+        this.newWeights = reweigh ? new double[numAssociates] : null;
+
+        Utils.parallelFor(numAssociates, numThreads, i -> {
+            Instance associate = associates.get(i);
+            neighborsIds[i] = fold.searchNeighbors(associate.getId(), params.getNumNeighbors(), excludedIds, metrics);
+
+            if (reweigh) {
+                List<Instance> newNeighbors = new ArrayList<>(neighborsIds[i].length);
+                for (int neighborId : neighborsIds[i])
+                    newNeighbors.add(fold.getInst(neighborId));
+
+                newWeights[i] = InstanceWeighting.getInstWeight(associate, newNeighbors, params, metrics);
+            }
+        });
+    }
+
+    /**
+     * Gets the associates whose neighbors were computed.
+     * @return The associates, in the order they are updated.
+     */
+    List<Instance> getAssociates() {
+        return associates;
+    }
+
+    /**
+     * Replaces the neighbors (and the weights, if they were computed) of the associates, one at a time, and adds the
+     * operations performed while computing the update to the metrics of the fold.
+     * @param fold The fold with all training instances.
+     */
+    void apply(Fold fold) {
+        for (int i = 0; i < associates.size(); i++) {
+            Instance associate = associates.get(i);
+
+            associate.clearNeighborsList();
+            associate.clearAssociatesList();
+            fold.linkNeighbors(associate.getId(), neighborsIds[i]);
+
+            if (newWeights != null) associate.setWeight(newWeights[i]);
+        }
+
+        if (newWeights != null) metrics.add(Metrics.Counter.REWEIGHTS, associates.size());
+
+        fold.getMetrics().addAll(metrics);
+    }
+}
@@ -0,0 +1,112 @@
+package edu.isr.data;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Approximate elimination, in which several instances with the smallest weights are eliminated in a single step and
+ * their associates are updated once for the whole block. The instances of a block are taken in the order of their
+ * weights, as long as each one is not in the neighborhood (the instance, its neighbors and its associates) of the
+ * previous ones, or its weight is within a tolerance of the smallest weight. The first instance that fails both
+ * conditions ends the block, so the instances are still ranked in the order of their weights at the beginning of the
+ * step.
+ *
+ * The ranks differ from those of the exact elimination when the update of an instance of the block would have changed
+ * the order of the following ones. The agreement between both rankings is measured by {@link RankAgreement}.
+ */
+class BlockElimination {
+    private final Fold fold;
+    private final ParametersManager params;
+
+    private final ArrayDeque<Instance> block = new ArrayDeque<>(); // instances of the current block not yet eliminated
+    private final Set<Instance> eliminated = new HashSet<>(); // instances of the current block already eliminated
+    private final Set<Instance> associates = new LinkedHashSet<>(); // associates of the eliminated instances
+
+    /**
+     * @param fold The fold whose instances are being ranked.
+     * @param params Experiment parameters.
+     */
+    BlockElimination(Fold fold, ParametersManager params) {
+        this.fold = fold;
+        this.params = params;
+    }
+
+    /**
+     * Gets the next instance to be eliminated, starting a new block if the current one is over.
+     * @param numUpdatesLeft Number of eliminations, including this one, whose associates will be updated. The block does
+     *                       not go beyond them, so the associates of all its instances are updated.
+     * @return The instance.
+     */
+    Instance getNextInst(int numUpdatesLeft) {
+        if (block.isEmpty()) selectBlock(Math.min(params.getBlockSize(), numUpdatesLeft));
+
+        return block.poll();
+    }
+
+    /**
+     * Registers the associates of an eliminated instance, after its traces were cleared and the distance matrix updated.
+     * They are updated together with those of the other instances of the block after the last one is eliminated.
+     * @param inst The instance just eliminated.
+     */
+    void updateAssociatesWeights(Instance inst) {
+        eliminated.add(inst);
+        associates.addAll(inst.getAssociates());
+
+        if (!block.isEmpty()) return;
+
+        // the instances of the block that were associates of each other are already ranked
+        List<Instance> blockAssociates = new ArrayList<>(associates.size());
+        for (Instance associate : associates)
+            if (!eliminated.contains(associate)) blockAssociates.add(associate);
+
+        InstanceWeighting.updateAssociatesWeights(fold, blockAssociates, params);
+
+        eliminated.clear();
+        associates.clear();
+    }
+
+    /**
+     * Indicates if all instances of the current block were eliminated and their associates updated.
+     * @return True if the next instance starts a new block.
+     */
+    boolean isBetweenBlocks() {
+        return block.isEmpty() && eliminated.isEmpty();
+    }
+
+    /**
+     * Selects the instances of the next block.
+     * @param maxBlockSize Maximum number of instances of the block.
+     */
+    private void selectBlock(int maxBlockSize) {
+        List<Instance> candidates = fold.getInstsSmallestWeights(Math.max(1, maxBlockSize));
+        if (candidates.isEmpty()) return;
+
+        double smallestWeight = candidates.get(0).getWeight();
+        double maxWeight = smallestWeight + params.getBlockTolerance() * Math.abs(smallestWeight);
+
+        Set<Instance> neighborhoods = new HashSet<>(); // instances in the neighborhood of the block
+
+        for (Instance candidate : candidates) {
+            Set<Instance> neighborhood = new HashSet<>(candidate.getNeighbors());
+            neighborhood.addAll(candidate.getAssociates());
+            neighborhood.add(candidate);
+
+            boolean overlaps = false;
+            for (Instance inst : neighborhood) {
+                if (neighborhoods.contains(inst)) {
+                    overlaps = true;
+                    break;
+                }
+            }
+
+            if (!block.isEmpty() && overlaps && candidate.getWeight() > maxWeight) break;
+
+            block.add(candidate);
+            neighborhoods.addAll(neighborhood);
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package edu.isr.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Periodically saves the state of the elimination loop of a fold, so an interrupted run can be resumed from the last
+ * checkpoint instead of starting over. The state (elimination order, current weights and neighbor graph) is copied by
+ * the loop thread, which takes time proportional to the number of instances times the number of neighbors, and written
+ * by a background thread. If the previous checkpoint is still being written, the new one is skipped, so the loop is
+ * never stalled.
+ *
+ * The distance matrix is not saved: when resuming, it is measured again and the distances to or from the eliminated
+ * instances are set to infinite, exactly as the loop did.
+ */
+class Checkpointer {
+    private static final int MAGIC = 0x49535243; // "ISRC"
+    private static final int VERSION = 1;
+
+    private final Path file;
+    private final String config;
+    private final long intervalNanos;
+    private final ExecutorService writer;
+
+    private long lastSaveTime = System.nanoTime();
+    private Future<?> pendingWrite;
+
+    /**
+     * Creates a checkpointer for a fold.
+     * @param file Path to the checkpoint file.
+     * @param config Description of the configuration. A checkpoint is only restored if it was created with the same
+     *               configuration.
+     * @param intervalSeconds Interval between checkpoints, in seconds.
+     */
+    private Checkpointer(Path file, String config, double intervalSeconds) {
+        this.file = file;
+        this.config = config;
+        this.intervalNanos = (long) (intervalSeconds * 1e9);
+
+        writer = Executors.newSingleThreadExecutor(task -> {
+            Thread thread = new Thread(task, "checkpoint-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a checkpointer for a fold, if checkpoints are enabled.
+     * @param fold The fold whose elimination loop will be checkpointed.
+     * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
+     * @param params Experiment parameters.
+     * @return The checkpointer, or null if the "checkpoint.interval" parameter is 0.
+     * @throws IOException If the folder where the checkpoints are written could not be created.
+     */
+    static Checkpointer create(Fold fold, String expId, ParametersManager params) throws IOException {
+        if (params.getCheckpointInterval() <= 0) return null;
+
+        Path folder = Paths.get(params.getOutPath() + expId + "/checkpoints");
+        try {
+            Files.createDirectories(folder);
+        } catch (IOException e) {
+            throw new IOException("Error while creating the folder where the checkpoints should be written.");
+        }
+
+        // the content of the fold is included, so a fold generated or normalized again does not resume the old ranking
+        String config = expId + " " + params.getDatasetName() + " " + params.getCombMethod() + " " +
+                fold.getContentHash();
+        if (params.getBlockSize() > 1) config += " block-" + params.getBlockSize() + "-" + params.getBlockTolerance();
+        if (!params.getReductionMethod().equals("none"))
+            config += " " + params.getReductionMethod() + "-" + params.getReductionDimensions() + "-" +
+                    params.getReductionSeed();
+        if (!params.getReorderingCurve().equals("none")) config += " " + params.getReorderingCurve();
+        if (params.getPrunedNeighborSearch() && !Utils.isSymmetricMetric(params.getDistMetric())) config += " pruned";
+        return new Checkpointer(folder.resolve(params.getDatasetName() + "-" + fold.getFoldId() + ".ckpt"), config,
+                params.getCheckpointInterval());
+    }
+
+    /**
+     * Restores the state of the elimination loop from the checkpoint file, if there is one created with the same
+     * configuration. The fold should have just been weighted, so its distance matrix is complete.
+     * @param fold The fold.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @param eliminationOrder Array where the ids of the instances eliminated before the checkpoint are copied, in the
+     *                         order of elimination.
+     * @return The number of eliminations restored (0 if there was no valid checkpoint).
+     */
+    int restore(Fold fold, int numNeighbors, int[] eliminationOrder) {
+        if (!Files.isRegularFile(file)) return 0;
+
+        int numInst = fold.getNumInst();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !in.readUTF().equals(config) ||
+                    in.readInt() != numInst || in.readInt() != numNeighbors) {
+                System.out.println("  Ignoring checkpoint created with a different configuration: " + file + ".");
+                return 0;
+            }
+
+            int numEliminated = in.readInt();
+            for (int j = 0; j < numEliminated; j++)
+                eliminationOrder[j] = in.readInt();
+
+            double[] weights = new double[numInst];
+            for (int i = 0; i < numInst; i++)
+                weights[i] = in.readDouble();
+
+            int[][] neighbors = readIdLists(in, numInst);
+            int[][] associates = readIdLists(in, numInst);
+
+            // replays the effects of the eliminations on the ranks and on the distance matrix
+            for (int j = 0; j < numEliminated; j++) {
+                int rank = numInst - j;
+                fold.getInst(eliminationOrder[j]).setRank(rank);
+
+                if (rank > numNeighbors) fold.updateDistMatrix(eliminationOrder[j]);
+            }
+
+            for (int i = 0; i < numInst; i++) {
+                Instance inst = fold.getInst(i);
+                inst.setWeight(weights[i]);
+
+                inst.clearNeighborsList();
+                for (int neighborId : neighbors[i])
+                    inst.addNeighbor(fold.getInst(neighborId));
+
+                inst.clearAssociatesList();
+                for (int associateId : associates[i])
+                    inst.addAssociate(fold.getInst(associateId));
+            }
+
+            System.out.println("  Resuming from checkpoint: " + numEliminated + " instances already ranked.");
+            return numEliminated;
+        } catch (IOException e) {
+            System.out.println("  Ignoring unreadable checkpoint: " + file + ".");
+            return 0;
+        }
+    }
+
+    /**
+     * Saves a checkpoint if the interval has elapsed and the previous one was already written.
+     * @param fold The fold.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @param eliminationOrder The ids of the instances eliminated so far, in the order of elimination.
+     * @param numEliminated Number of instances eliminated so far.
+     */
+    void maybeSave(Fold fold, int numNeighbors, int[] eliminationOrder, int numEliminated) {
+        long now = System.nanoTime();
+        if (now - lastSaveTime < intervalNanos) return;
+        if (pendingWrite != null && !pendingWrite.isDone()) return;
+
+        lastSaveTime = now;
+
+        // copies the state, which will keep changing while the file is written
+        int numInst = fold.getNumInst();
+        int[] order = new int[numEliminated];
+        System.arraycopy(eliminationOrder, 0, order, 0, numEliminated);
+
+        double[] weights = new double[numInst];
+        int[][] neighbors = new int[numInst][];
+        int[][] associates = new int[numInst][];
+
+        for (int i = 0; i < numInst; i++) {
+            Instance inst = fold.getInst(i);
+            weights[i] = inst.getWeight();
+            neighbors[i] = toIds(inst.getNeighbors());
+            associates[i] = toIds(inst.getAssociates());
+        }
+
+        pendingWrite = writer.submit(() -> {
+            try {
+                write(numInst, numNeighbors, order, weights, neighbors, associates);
+            } catch (IOException e) {
+                System.out.println("  Error while writing the checkpoint: " + file + ".");
+            }
+        });
+    }
+
+    /**
+     * Waits for the checkpoint being written (if any) and stops the background thread.
+     */
+    void close() {
+        writer.shutdown();
+
+        try {
+            if (pendingWrite != null) pendingWrite.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.out.println("  Error while writing the checkpoint: " + file + ".");
+        }
+    }
+
+    /**
+     * Deletes the checkpoint file. Should be called once the results of the fold were written.
+     * @throws IOException If the file could not be deleted.
+     */
+    void delete() throws IOException {
+        close();
+
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            throw new IOException("Error while deleting the checkpoint: " + file + ".");
+        }
+    }
+
+    /**
+     * Writes the checkpoint in a temporary file, which then replaces the previous checkpoint. This way, an interruption
+     * during the writing never leaves a corrupted checkpoint behind.
+     */
+    private void write(int numInst, int numNeighbors, int[] order, double[] weights, int[][] neighbors,
+                       int[][] associates) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile),
+                1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(config);
+            out.writeInt(numInst);
+            out.writeInt(numNeighbors);
+
+            out.writeInt(order.length);
+            for (int id : order)
+                out.writeInt(id);
+
+            for (double weight : weights)
+                out.writeDouble(weight);
+
+            writeIdLists(out, neighbors);
+            writeIdLists(out, associates);
+        }
+
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int[] toIds(List<Instance> insts) {
+        int[] ids = new int[insts.size()];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = insts.get(i).getId();
+
+        return ids;
+    }
+
+    private static void writeIdLists(DataOutputStream out, int[][] lists) throws IOException {
+        for (int[] list : lists) {
+            out.writeInt(list.length);
+            for (int id : list)
+                out.writeInt(id);
+        }
+    }
+
+    private static int[][] readIdLists(DataInputStream in, int numLists) throws IOException {
+        int[][] lists = new int[numLists][];
+
+        for (int i = 0; i < numLists; i++) {
+            lists[i] = new int[in.readInt()];
+            for (int j = 0; j < lists[i].length; j++)
+                lists[i][j] = in.readInt();
+        }
+
+        return lists;
+    }
+}
@@ -0,0 +1,286 @@
+package edu.isr.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * On-disk cache of the distance matrix and of the initial nearest neighbors of a fold. Both depend only on the content
+ * of the fold, the distance metric and (for the neighbors) the number of neighbors, so they can be shared by experiments
+ * with different weighting functions, including experiments running at the same time in other processes.
+ *
+ * The distances are stored as the lower triangle of the matrix, row by row, and the neighbors as the ids of the
+ * neighbors of each instance, both as little-endian values after a 16-byte header. Cached files are memory-mapped when
+ * read, so concurrent processes share the same pages of the operating system cache. Each fold still receives its own
+ * copy of the distance matrix, since the elimination loop modifies it.
+ *
+ * Files are written in temporary files which are then atomically renamed, so a partial file is never read, even when
+ * several processes create the same entry at once. The total size of the cache is bounded, with the least recently
+ * used files evicted first.
+ */
+class DistanceCache {
+    private static final int DISTANCES_MAGIC = 0x49535244; // "ISRD"
+    private static final int NEIGHBORS_MAGIC = 0x4953524e; // "ISRN"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final String EXTENSION = ".cache";
+
+    private static final int MAX_MAP_SIZE = 1 << 30; // files larger than this are mapped in several regions
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path folder;
+    private final long maxBytes;
+
+    private DistanceCache(Path folder, long maxBytes) {
+        this.folder = folder;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Opens the distance cache, if it is enabled.
+     * @param params Experiment parameters.
+     * @return The cache, or null if the "distance.cache.path" parameter is empty or the cache folder could not be
+     * created.
+     */
+    static DistanceCache open(ParametersManager params) {
+        if (params.getDistanceCachePath().isEmpty()) return null;
+
+        Path folder = Paths.get(params.getDistanceCachePath());
+        try {
+            Files.createDirectories(folder);
+        } catch (IOException e) {
+            System.out.println("  Distance cache disabled: its folder could not be created.");
+            return null;
+        }
+
+        return new DistanceCache(folder, (long) params.getDistanceCacheSize() << 20);
+    }
+
+    /**
+     * Fills the distance matrix of a fold with the cached distances, if they are available.
+     * @param fold The fold.
+     * @param distMetric Parameter of the parameterized Minkowski metric.
+     * @return True if the distances were found in the cache.
+     */
+    boolean loadDistances(Fold fold, double distMetric) {
+        Path file = getDistancesFile(fold, distMetric);
+        int numInst = fold.getNumInst();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long numValues = (long) numInst * (numInst - 1) / 2;
+            if (!hasValidHeader(channel, DISTANCES_MAGIC, numInst, 0, numValues * Double.BYTES)) return false;
+
+            double[][] distBetweenInst = new double[numInst][numInst];
+
+            // the lower triangle is copied to both halves of the matrix
+            int i = 1;
+            int j = 0;
+            for (long position = HEADER_SIZE; position < channel.size(); position += MAX_MAP_SIZE) {
+                DoubleBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAX_MAP_SIZE, channel.size() - position)).order(ByteOrder.LITTLE_ENDIAN)
+                        .asDoubleBuffer();
+
+                while (buffer.hasRemaining()) {
+                    distBetweenInst[i][j] = buffer.get();
+                    distBetweenInst[j][i] = distBetweenInst[i][j];
+
+                    if (++j == i) {
+                        i++;
+                        j = 0;
+                    }
+                }
+            }
+
+            fold.setDistBetweenInst(distBetweenInst);
+        } catch (IOException e) {
+            // not cached yet, or evicted by another process
+            return false;
+        }
+
+        Utils.touch(file);
+        return true;
+    }
+
+    /**
+     * Adds the distance matrix of a fold to the cache.
+     * @param fold A fold whose distances were just measured.
+     * @param distMetric Parameter of the parameterized Minkowski metric.
+     */
+    void storeDistances(Fold fold, double distMetric) {
+        double[][] distBetweenInst = fold.getDistBetweenInst();
+        int numInst = fold.getNumInst();
+
+        store(getDistancesFile(fold, distMetric), DISTANCES_MAGIC, numInst, 0, buffer -> {
+            for (int i = 1; i < numInst; i++) {
+                for (int j = 0; j < i; j++) {
+                    if (buffer.remaining() < Double.BYTES) buffer.flush();
+                    buffer.putDouble(distBetweenInst[i][j]);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the cached initial neighbors of all instances of a fold, if they are available.
+     * @param fold The fold.
+     * @param distMetric Parameter of the parameterized Minkowski metric.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @return The ids of the neighbors of each instance, from the nearest to the farthest, or null if they were not
+     * found in the cache.
+     */
+    int[][] loadNeighbors(Fold fold, double distMetric, int numNeighbors) {
+        Path file = getNeighborsFile(fold, distMetric, numNeighbors);
+        int numInst = fold.getNumInst();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long numValues = (long) numInst * numNeighbors;
+            if (!hasValidHeader(channel, NEIGHBORS_MAGIC, numInst, numNeighbors, numValues * Integer.BYTES))
+                return null;
+
+            int[][] neighborsIds = new int[numInst][numNeighbors];
+
+            int i = 0;
+            for (long position = HEADER_SIZE; position < channel.size(); position += MAX_MAP_SIZE) {
+                IntBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(MAX_MAP_SIZE, channel.size() - position)).order(ByteOrder.LITTLE_ENDIAN)
+                        .asIntBuffer();
+
+                // the values are indexed as a flat array, since a row may span two regions
+                while (buffer.hasRemaining()) {
+                    int[] row = neighborsIds[i / numNeighbors];
+                    row[i % numNeighbors] = buffer.get();
+                    i++;
+                }
+            }
+
+            Utils.touch(file);
+            return neighborsIds;
+        } catch (IOException e) {
+            // not cached yet, or evicted by another process
+            return null;
+        }
+    }
+
+    /**
+     * Adds the initial neighbors of all instances of a fold to the cache.
+     * @param fold The fold.
+     * @param distMetric Parameter of the parameterized Minkowski metric.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @param neighborsIds The ids of the neighbors of each instance, from the nearest to the farthest.
+     */
+    void storeNeighbors(Fold fold, double distMetric, int numNeighbors, int[][] neighborsIds) {
+        store(getNeighborsFile(fold, distMetric, numNeighbors), NEIGHBORS_MAGIC, fold.getNumInst(), numNeighbors,
+                buffer -> {
+                    for (int[] row : neighborsIds) {
+                        for (int neighborId : row) {
+                            if (buffer.remaining() < Integer.BYTES) buffer.flush();
+                            buffer.putInt(neighborId);
+                        }
+                    }
+                });
+    }
+
+    private Path getDistancesFile(Fold fold, double distMetric) {
+        return folder.resolve(fold.getContentHash() + "-L" + distMetric + "-distances" + EXTENSION);
+    }
+
+    private Path getNeighborsFile(Fold fold, double distMetric, int numNeighbors) {
+        return folder.resolve(fold.getContentHash() + "-L" + distMetric + "-k" + numNeighbors + "-neighbors" +
+                EXTENSION);
+    }
+
+    /**
+     * Checks if a cached file was written for a fold of the expected size.
+     */
+    private static boolean hasValidHeader(FileChannel channel, int magic, int numInst, int numNeighbors,
+                                          long dataSize) throws IOException {
+        if (channel.size() != HEADER_SIZE + dataSize) return false;
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining())
+            if (channel.read(header, header.position()) < 0) return false;
+        header.flip();
+
+        return header.getInt() == magic && header.getInt() == VERSION && header.getInt() == numInst &&
+                header.getInt() == numNeighbors;
+    }
+
+    /**
+     * Writes a cache file through a temporary file, which is then atomically renamed, and evicts the least recently
+     * used files if the cache gets too large. Errors are reported but do not interrupt the experiment, since the values
+     * can always be computed again.
+     */
+    private void store(Path file, int magic, int numInst, int numNeighbors, ValueWriter values) {
+        Path tempFile = null;
+
+        try {
+            tempFile = Files.createTempFile(folder, file.getFileName().toString(), ".tmp");
+
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE)) {
+                ChannelBuffer buffer = new ChannelBuffer(channel);
+                buffer.putInt(magic).putInt(VERSION).putInt(numInst).putInt(numNeighbors);
+                values.write(buffer);
+                buffer.flush();
+            }
+
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            Utils.evictLeastRecentlyUsed(folder, EXTENSION, maxBytes);
+        } catch (IOException e) {
+            System.out.println("  Error while writing the distance cache file: " + file + ".");
+
+            try {
+                if (tempFile != null) Files.deleteIfExists(tempFile);
+            } catch (IOException ignored) {
+                // the temporary file is not considered by the eviction, so it only wastes some space
+            }
+        }
+    }
+
+    /**
+     * Writes the values of a cache file.
+     */
+    private interface ValueWriter {
+        void write(ChannelBuffer buffer) throws IOException;
+    }
+
+    /**
+     * Little-endian buffer that is written to a file channel whenever it is flushed.
+     */
+    private static final class ChannelBuffer {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        ChannelBuffer(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        ChannelBuffer putInt(int value) {
+            buffer.putInt(value);
+            return this;
+        }
+
+        ChannelBuffer putDouble(double value) {
+            buffer.putDouble(value);
+            return this;
+        }
+
+        int remaining() {
+            return buffer.remaining();
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package edu.isr.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Instances of a fold grouped by their input attributes. Instances with identical inputs are at distance 0 from each
+ * other and at the same distance from any other instance, so the distances are only measured between the distinct
+ * inputs and the nearest neighbors are only searched once for each of them. The distance matrix and the neighbors of
+ * each instance are then exactly the ones obtained without grouping, and the elimination loop still ranks each instance
+ * individually.
+ *
+ * As in {@link SharedDistances}, the instances are only grouped when the distance metric is symmetric (see
+ * {@link Utils#isSymmetricMetric(double)}).
+ */
+class DistinctInputs {
+    private final Fold fold;
+    private final int[] distinctIds; // for each instance, the id of its distinct input
+    private final int[][] instIds; // for each distinct input, the ids of the instances with it, in increasing order
+
+    private DistinctInputs(Fold fold, int[] distinctIds, int[][] instIds) {
+        this.fold = fold;
+        this.distinctIds = distinctIds;
+        this.instIds = instIds;
+    }
+
+    /**
+     * Groups the instances of a fold by their input attributes, if the distance metric allows it.
+     * @param fold The fold.
+     * @param params Experiment parameters.
+     * @return The groups, or null if the distance metric is not an even integer.
+     */
+    static DistinctInputs find(Fold fold, ParametersManager params) {
+        if (!Utils.isSymmetricMetric(params.getDistMetric())) {
+            OutputHandler.printMessage("  Duplicate inputs are not collapsed: the distance metric is not an even " +
+                    "integer.", params);
+            return null;
+        }
+
+        int numInst = fold.getNumInst();
+        Map<InputKey, Integer> keysToIds = new HashMap<>();
+        List<List<Integer>> groups = new ArrayList<>();
+        int[] distinctIds = new int[numInst];
+
+        for (int i = 0; i < numInst; i++) {
+            distinctIds[i] = keysToIds.computeIfAbsent(new InputKey(fold.getInst(i).getInput()), key -> {
+                groups.add(new ArrayList<>());
+                return groups.size() - 1;
+            });
+
+            groups.get(distinctIds[i]).add(i);
+        }
+
+        int[][] instIds = new int[groups.size()][];
+        for (int a = 0; a < instIds.length; a++)
+            instIds[a] = groups.get(a).stream().mapToInt(Integer::intValue).toArray();
+
+        OutputHandler.printMessage("  Duplicate inputs collapsed: " + instIds.length + " distinct instances " +
+                "out of " + numInst + ".", params);
+
+        return new DistinctInputs(fold, distinctIds, instIds);
+    }
+
+    /**
+     * Measures the distances between the distinct inputs and fills the distance matrix of the fold with them.
+     * @param distMetric Metric used in order to calculate distances between instances.
+     * @param numThreads Number of worker threads.
+     */
+    void measureDistBetweenInst(double distMetric, int numThreads) {
+        int numDistinct = instIds.length;
+        int numDimensions = fold.getNumAttr() - 1;
+
+        // lower triangle: distances[a][b], for b < a, between the distinct inputs a and b
+        double[][] distances = new double[numDistinct][];
+
+        Utils.parallelFor(numDistinct, numThreads, a -> {
+            double[] u = getInput(a);
+            distances[a] = new double[a];
+
+            for (int b = 0; b < a; b++)
+                distances[a][b] = Utils.measureDist(u, getInput(b), numDimensions, distMetric);
+        });
+
+        int numInst = fold.getNumInst();
+        double[][] distBetweenInst = new double[numInst][numInst];
+
+        // each task fills one row of the matrix
+        Utils.parallelFor(numInst, numThreads, i -> {
+            int a = distinctIds[i];
+
+            for (int j = 0; j < numInst; j++) {
+                int b = distinctIds[j];
+                distBetweenInst[i][j] = a == b ? 0 : a > b ? distances[a][b] : distances[b][a];
+            }
+        });
+
+        fold.setDistBetweenInst(distBetweenInst);
+    }
+
+    /**
+     * Searches for the nearest neighbors of all instances, as {@link Fold#searchAllNeighbors(int, int)} does, based on
+     * the distance matrix of the fold. The instances are ordered by distance and then by id once for each distinct
+     * input, and the neighbors of each instance are the first ones in the order of its input, except the instance itself.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @param numThreads Number of worker threads.
+     * @return The ids of the neighbors of each instance, from the nearest to the farthest.
+     */
+    int[][] searchAllNeighbors(int numNeighbors, int numThreads) {
+        int numDistinct = instIds.length;
+        int[][] nearestIds = new int[numDistinct][];
+
+        Utils.parallelFor(numDistinct, numThreads, a -> nearestIds[a] = searchNearest(a, numNeighbors + 1));
+        fold.getMetrics().add(Metrics.Counter.NEIGHBOR_SEARCHES, numDistinct);
+
+        int numInst = fold.getNumInst();
+        int[][] neighborsIds = new int[numInst][];
+
+        for (int i = 0; i < numInst; i++) {
+            int[] nearest = nearestIds[distinctIds[i]];
+            neighborsIds[i] = new int[numNeighbors];
+
+            int numNeighborsAdded = 0;
+            for (int j = 0; numNeighborsAdded < numNeighbors; j++)
+                if (nearest[j] != i) neighborsIds[i][numNeighborsAdded++] = nearest[j];
+        }
+
+        return neighborsIds;
+    }
+
+    /**
+     * Finds the instances nearest to a distinct input, including the instances with this input.
+     * @param a The distinct input.
+     * @param numNearest Minimum number of instances returned, unless the fold is smaller.
+     * @return The ids of the instances, ordered by distance and then by id in the fold file.
+     */
+    private int[] searchNearest(int a, int numNearest) {
+        double[] distOtherInst = fold.getDistBetweenInst()[instIds[a][0]];
+
+        Integer[] order = new Integer[instIds.length];
+        for (int b = 0; b < order.length; b++)
+            order[b] = b;
+
+        Arrays.sort(order, Comparator.comparingDouble(b -> distOtherInst[instIds[b][0]]));
+
+        List<Integer> nearest = new ArrayList<>(numNearest + instIds[a].length);
+
+        // the instances of the distinct inputs at the same distance are merged in the order of the fold file
+        for (int g = 0, h; g < order.length && nearest.size() < numNearest; g = h) {
+            double dist = distOtherInst[instIds[order[g]][0]];
+            List<Integer> group = new ArrayList<>();
+
+            for (h = g; h < order.length && Double.compare(distOtherInst[instIds[order[h]][0]], dist) == 0; h++)
+                for (int instId : instIds[order[h]])
+                    group.add(instId);
+
+            group.sort(Comparator.comparingInt(fold::getOriginalId));
+            nearest.addAll(group);
+        }
+
+        return nearest.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Gets the input attributes of a distinct input.
+     * @param a The distinct input.
+     * @return The input attributes of the first instance with this input.
+     */
+    private double[] getInput(int a) {
+        return fold.getInst(instIds[a][0]).getInput();
+    }
+}
@@ -0,0 +1,322 @@
+package edu.isr.data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Chooses how the nearest neighbors are searched, before the folds are ranked, from the estimated memory and time of
+ * each engine in the largest fold:
+ *
+ * - "matrix": the distances between all pairs of instances are measured beforehand and kept in an n x n matrix, so that
+ *   each neighbor search only sorts a row of it.
+ * - "pruned": the distances are measured on demand by a {@link PrunedNeighborSearch}, which only keeps the distances
+ *   to a few pivot instances.
+ *
+ * The memory is estimated from the sizes of the structures of each engine and compared with the heap still available.
+ * The time is extrapolated from a sample of the instances of the fold, in which the distances are measured and the
+ * neighbors are searched with both engines, and the number of neighbor searches and weights computed by the elimination
+ * loop, which depends on the number of neighbors and on the weighting function. Both estimates are rough, but enough to
+ * tell apart engines that differ by orders of magnitude.
+ *
+ * When the "neighbor.search" parameter is "auto", the fastest engine among those that fit in the heap is chosen. The
+ * pruned search is only considered when the parameters allow it and the metric is symmetric (see
+ * {@link Utils#isSymmetricMetric(double)}), since otherwise it measures different distances from the matrix and would
+ * change the ranks. For the other metrics, the matrix is kept, and the experiment fails if it exceeds the available
+ * heap. The parameter file may also set the engine, in which case only the memory is estimated and reported.
+ *
+ * Timing the sample costs about as much as ranking a small fold, so the plans that are not reported (see
+ * {@link InstanceRanking}) only estimate the memory, and take the matrix whenever it fits, since it is usually faster.
+ */
+public class EnginePlan {
+    private static final int NUM_SAMPLED_INST = 400; // instances of the sample in which the engines are timed
+    private static final double HEAP_FRACTION = 0.8; // fraction of the available heap the structures may use
+
+    private static final String[] ENGINES = {"matrix", "pruned"};
+
+    private final String engine;
+    private final String reason;
+    private final List<String> description = new ArrayList<>();
+
+    private EnginePlan(String engine, String reason) {
+        this.engine = engine;
+        this.reason = reason;
+    }
+
+    /**
+     * Chooses the neighbor search of an experiment, and sets it in the parameters if it was chosen automatically. The
+     * engines are only timed if the choice depends on it.
+     * @param folds The normalized training folds, after their inputs were reduced, if it is the case.
+     * @param params Experiment parameters.
+     * @return The plan, with the estimates of each engine.
+     * @throws IllegalStateException If the engine is chosen automatically, the metric is not symmetric and the distance
+     * matrix exceeds the available heap.
+     */
+    public static EnginePlan plan(List<Fold> folds, ParametersManager params) {
+        return plan(folds, params, params.getNeighborSearch().equals("auto"));
+    }
+
+    /**
+     * Chooses the neighbor search of an experiment, and sets it in the parameters if it was chosen automatically.
+     * @param folds The normalized training folds, after their inputs were reduced, if it is the case.
+     * @param params Experiment parameters.
+     * @param timed Indicates if the engines should be timed in a sample of the largest fold. Otherwise, only the memory
+     *              is estimated.
+     * @return The plan, with the estimates of each engine.
+     * @throws IllegalStateException If the engine is chosen automatically, the metric is not symmetric and the distance
+     * matrix exceeds the available heap.
+     */
+    static EnginePlan plan(List<Fold> folds, ParametersManager params, boolean timed) {
+        Fold largestFold = folds.get(0);
+        for (Fold fold : folds)
+            if (fold.getNumInst() > largestFold.getNumInst()) largestFold = fold;
+
+        int numInst = largestFold.getNumInst();
+        int numNeighbors = params.getNumNeighbors();
+
+        // the distances shared between the folds are kept until all of them are ranked, in addition to their matrices
+        long sharedMemory = SharedDistances.estimateMemory(folds, params);
+        long matrixMemory = largestFold.estimateRankingMemory(numNeighbors) + sharedMemory;
+
+        Runtime runtime = Runtime.getRuntime();
+        long availableMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+
+        // the garbage left by reading the folds is counted as used memory, so it is collected if the matrix may not fit
+        if (matrixMemory > HEAP_FRACTION * availableMemory) {
+            runtime.gc();
+            availableMemory = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        }
+
+        boolean prunedAllowed = params.getDistMetric() >= 1 && params.getDistanceCachePath().isEmpty() &&
+                !params.getDistanceSharing() && !params.getDuplicateCollapsing();
+        boolean sameDistances = Utils.isSymmetricMetric(params.getDistMetric());
+
+        long[] memory = new long[ENGINES.length];
+        double[] seconds = new double[ENGINES.length];
+        boolean[] fits = new boolean[ENGINES.length];
+
+        for (int e = 0; e < ENGINES.length; e++) {
+            if (ENGINES[e].equals("pruned") && !prunedAllowed) continue;
+
+            memory[e] = ENGINES[e].equals("matrix") ? matrixMemory :
+                    estimatePrunedMemory(numInst, numNeighbors, params.getNumPivots(), params.getNumThreads());
+            fits[e] = memory[e] <= HEAP_FRACTION * availableMemory;
+        }
+
+        if (timed) {
+            double[] nanosPerSearch = timeEngines(largestFold, params, prunedAllowed);
+            double nanosPerDist = nanosPerSearch[ENGINES.length];
+
+            // searches of the initial neighbors (in parallel), and of the new neighbors of the associates of each
+            // eliminated instance (about one associate per neighbor)
+            double numInitialSearches = (double) numInst / params.getNumThreads();
+            double numUpdateSearches = (double) numInst * numNeighbors;
+
+            double weightingNanos = estimateWeightingNanos(numInst, largestFold.getNumAttr() - 1, nanosPerDist, params);
+
+            for (int e = 0; e < ENGINES.length; e++) {
+                if (ENGINES[e].equals("pruned") && !prunedAllowed) continue;
+
+                double setupNanos = ENGINES[e].equals("matrix") ? nanosPerDist * numInst * (numInst - 1) / 2 :
+                        nanosPerDist * numInst * params.getNumPivots() / params.getNumThreads();
+                seconds[e] = (setupNanos + nanosPerSearch[e] * (numInitialSearches + numUpdateSearches) +
+                        weightingNanos) / 1e9;
+            }
+        }
+
+        EnginePlan plan;
+        if (!params.getNeighborSearch().equals("auto")) {
+            plan = new EnginePlan(params.getNeighborSearch(), "set in the parameter file");
+        } else if (!prunedAllowed) {
+            plan = new EnginePlan("matrix", "the pruned search is not allowed by the parameters");
+        } else if (!sameDistances) {
+            if (memory[0] > availableMemory)
+                throw new IllegalStateException("The distance matrix of the largest fold needs about " +
+                        toMegabytes(memory[0]) + " MB, but only " + toMegabytes(availableMemory) + " MB of the heap " +
+                        "are available. The pruned search is not chosen automatically for a distance metric that is " +
+                        "not an even integer, since it measures different distances; increase the heap (-Xmx), reduce " +
+                        "the inputs or set \"neighbor.search\" to \"pruned\".");
+
+            plan = new EnginePlan("matrix", "the pruned search measures different distances for this metric");
+        } else if (fits[0] && fits[1] && !timed) {
+            plan = new EnginePlan("matrix", "both fit in the heap, and it is usually faster");
+        } else if (fits[0] && fits[1]) {
+            plan = seconds[1] < seconds[0] ? new EnginePlan("pruned", "both fit in the heap, and it is faster") :
+                    new EnginePlan("matrix", "both fit in the heap, and it is faster");
+        } else if (fits[0] || fits[1]) {
+            plan = fits[0] ? new EnginePlan("matrix", "the pruned search does not fit in the heap") :
+                    new EnginePlan("pruned", "the distance matrix does not fit in the heap");
+        } else {
+            plan = memory[1] < memory[0] ? new EnginePlan("pruned", "it needs the least memory") :
+                    new EnginePlan("matrix", "it needs the least memory");
+        }
+
+        if (params.getNeighborSearch().equals("auto")) params.setNeighborSearch(plan.engine);
+
+        plan.description.add("Neighbor search: " + plan.engine + " (" + plan.reason + ").");
+        plan.description.add("  Largest fold: " + numInst + " instances, " + (largestFold.getNumAttr() - 1) +
+                " inputs, " + numNeighbors + " neighbors, " + params.getWeightingFunction() + " weighting, " +
+                params.getNumThreads() + " threads of " + runtime.availableProcessors() + " processors.");
+        plan.description.add("  Available heap: " + toMegabytes(availableMemory) + " MB.");
+        if (sharedMemory > 0)
+            plan.description.add("  Distances shared between the folds: " + toMegabytes(sharedMemory) + " MB, " +
+                    "included in the estimate of the matrix.");
+
+        for (int e = 0; e < ENGINES.length; e++) {
+            if (ENGINES[e].equals("pruned") && !prunedAllowed) continue;
+
+            String time = timed ? String.format(", %.1f s", seconds[e]) : "";
+            plan.description.add("  Estimated " + ENGINES[e] + " per fold: " + toMegabytes(memory[e]) + " MB" + time +
+                    (fits[e] ? "." : " (does not fit in the heap)."));
+        }
+
+        int chosen = plan.engine.equals("matrix") ? 0 : 1;
+        if (!fits[chosen])
+            plan.description.add("  Warning: the chosen engine may not fit in the heap. Consider increasing it " +
+                    "(-Xmx) or reducing the inputs.");
+
+        return plan;
+    }
+
+    /**
+     * Estimates the memory needed to rank the instances of a fold with the neighbor search of an experiment, which
+     * should have been chosen already. The distances shared between folds are not included, since they are measured
+     * for all folds at once (see {@link SharedDistances#estimateMemory(List, ParametersManager)}).
+     * @param fold The fold.
+     * @param params Experiment parameters.
+     * @return The estimated memory, in bytes.
+     */
+    public static long estimateRankingMemory(Fold fold, ParametersManager params) {
+        if (!params.getPrunedNeighborSearch()) return fold.estimateRankingMemory(params.getNumNeighbors());
+
+        return estimatePrunedMemory(fold.getNumInst(), params.getNumNeighbors(), params.getNumPivots(),
+                params.getNumThreads());
+    }
+
+    /**
+     * Gets the chosen neighbor search.
+     * @return "matrix" or "pruned".
+     */
+    public String getEngine() {
+        return engine;
+    }
+
+    /**
+     * Describes the choice and the estimates of each engine, to be printed and written in the run log.
+     * @return The lines of the description.
+     */
+    public List<String> getDescription() {
+        return description;
+    }
+
+    /**
+     * Estimates the memory needed to rank the instances of a fold with the pruned neighbor search: the distances to the
+     * pivots, the neighbors and associates lists, and the lower bounds and candidates of each search being run.
+     * @param numInst Number of instances.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @param numPivots Number of pivots.
+     * @param numThreads Number of worker threads, each one running a search.
+     * @return The estimated memory, in bytes.
+     */
+    private static long estimatePrunedMemory(int numInst, int numNeighbors, int numPivots, int numThreads) {
+        long pivotBytes = (long) numInst * (numPivots * Double.BYTES + 16 + 1); // distances and ranked flags
+        long listsBytes = (long) numInst * (2 * numNeighbors * 8 + 2 * 40); // as in Fold.estimateRankingMemory
+        long searchBytes = (long) numThreads * numInst * (8 + 4 + 16 + 1); // bound, boxed candidate, excluded flag
+
+        return pivotBytes + listsBytes + searchBytes;
+    }
+
+    /**
+     * Times the engines in a sample of evenly spaced instances of a fold, and extrapolates the time of a neighbor search
+     * to the size of the fold: a search of the matrix sorts a row, and a pruned search is assumed to measure the same
+     * fraction of the candidates as in the sample.
+     * @param fold The fold.
+     * @param params Experiment parameters.
+     * @param prunedAllowed Indicates if the pruned search should be timed.
+     * @return The time of a search of each engine, in the order of {@link #ENGINES}, followed by the time of a distance,
+     *         in nanoseconds.
+     */
+    private static double[] timeEngines(Fold fold, ParametersManager params, boolean prunedAllowed) {
+        int numInst = fold.getNumInst();
+        int numSampledInst = Math.min(NUM_SAMPLED_INST, numInst);
+        int numNeighbors = Math.min(params.getNumNeighbors(), numSampledInst - 1);
+
+        Fold sample = new Fold(fold.getFoldId());
+        for (int s = 0; s < numSampledInst; s++) {
+            Instance inst = fold.getInst((int) ((long) s * numInst / numSampledInst));
+            sample.addInst(new Instance(s, inst.getAllAttrs(), inst.getInput(), inst.getOutput()));
+        }
+        sample.setNumAttr(fold.getNumAttr());
+
+        double[] nanos = new double[ENGINES.length + 1];
+        if (numNeighbors < 1) return nanos;
+
+        // the first pass only warms up the compiler
+        long startTime = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            startTime = System.nanoTime();
+            sample.measureDistBetweenInst(params.getDistMetric());
+        }
+        double numSampledDist = (double) numSampledInst * (numSampledInst - 1) / 2;
+        nanos[ENGINES.length] = (System.nanoTime() - startTime) / numSampledDist;
+
+        double sortScale = (numInst * Math.log(numInst)) / (numSampledInst * Math.log(numSampledInst));
+        nanos[0] = timeSearches(sample, numNeighbors) * sortScale;
+
+        if (prunedAllowed) {
+            Fold prunedSample = sample.copy();
+            prunedSample.setPrunedSearch(PrunedNeighborSearch.build(prunedSample, params.getDistMetric(),
+                    params.getNumPivots(), 1));
+            nanos[1] = timeSearches(prunedSample, numNeighbors) * numInst / numSampledInst;
+        }
+
+        return nanos;
+    }
+
+    /**
+     * Times the searches of the neighbors of all instances of a sample, after a first pass that only warms up the
+     * compiler.
+     * @param sample The sample, with its distances measured or its pruned search built.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @return The average time of a search, in nanoseconds.
+     */
+    private static double timeSearches(Fold sample, int numNeighbors) {
+        sample.searchAllNeighbors(numNeighbors, 1);
+
+        long startTime = System.nanoTime();
+        sample.searchAllNeighbors(numNeighbors, 1);
+
+        return (double) (System.nanoTime() - startTime) / sample.getNumInst();
+    }
+
+    /**
+     * Estimates the time spent computing weights, which is the same for both engines. Each weight is assumed to cost
+     * about as much as a distance per neighbor, times the number of inputs for the least-squares hyperplanes of the
+     * nonlinearity function. The associates of each eliminated instance are weighed again, or the whole fold for the
+     * remoteness functions with the ordinal combination.
+     * @param numInst Number of instances.
+     * @param numInputs Number of input attributes.
+     * @param nanosPerDist Time of a distance, in nanoseconds.
+     * @param params Experiment parameters.
+     * @return The estimated time, in nanoseconds.
+     */
+    private static double estimateWeightingNanos(int numInst, int numInputs, double nanosPerDist,
+                                                 ParametersManager params) {
+        int numNeighbors = params.getNumNeighbors();
+        double nanosPerWeight = nanosPerDist * numNeighbors *
+                (params.getWeightingFunction().equals("nonlinearity") ? numInputs : 1);
+
+        double numWeights = InstanceWeighting.reweighsFold(params) ? (double) numInst * numInst / 2 :
+                (double) numInst * (numNeighbors + 1);
+
+        return nanosPerWeight * numWeights;
+    }
+
+    /**
+     * Converts an amount of memory to megabytes, rounding up.
+     * @param bytes The amount of memory, in bytes.
+     * @return The amount of memory, in megabytes.
+     */
+    private static long toMegabytes(long bytes) {
+        return (bytes + (1 << 20) - 1) >> 20;
+    }
+}
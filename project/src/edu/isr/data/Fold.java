@@ -1,10 +1,14 @@
 package edu.isr.data;
 
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 
 /**
  * Represents a set of instances. Each dataset may be represent by one or more folds.
@@ -17,6 +21,15 @@ public class Fold {
     private int numAttr;
 
     private double[][] distBetweenInst; // distances between the instances (always measured in the input space)
+    private PrunedNeighborSearch prunedSearch; // used instead of the distances when the matrix is not built
+
+    private final Metrics metrics = new Metrics(); // time spent and operations performed while processing the fold
+
+    private String contentHash; // computed on the first request
+
+    private RankAgreement rankAgreement; // only computed for the approximate elimination
+
+    private int[] originalIds; // id of each instance in the fold file, or null if the instances were not reordered
 
     /**
      * Builds an empty fold.
@@ -26,6 +39,23 @@ public class Fold {
         this.foldId = foldId;
     }
 
+    /**
+     * Copies the instances of the fold into a new fold, without neighbors, weights, ranks or distances. The attribute
+     * values are never modified, so they are shared with the copy.
+     * @return The copy.
+     */
+    Fold copy() {
+        Fold copy = new Fold(foldId);
+
+        for (Instance inst : instances)
+            copy.addInst(new Instance(inst.getId(), inst.getAllAttrs(), inst.getInput(), inst.getOutput()));
+
+        copy.setNumAttr(numAttr);
+        copy.contentHash = contentHash;
+        copy.originalIds = originalIds;
+        return copy;
+    }
+
     /**
      * Adds a new instance to the fold.
      * @param inst The instance to be added.
@@ -35,6 +65,104 @@ public class Fold {
         numInst++;
     }
 
+    /**
+     * Replaces the input attributes of all instances, keeping their outputs, for instance after projecting them to fewer
+     * dimensions. Should be called before the distances are measured.
+     * @param newInputs The new input attributes of each instance, all with the same length.
+     */
+    void replaceInputs(double[][] newInputs) {
+        assert distBetweenInst == null : "the inputs should be replaced before the distances are measured.";
+
+        for (int i = 0; i < numInst; i++) {
+            Instance inst = instances.get(i);
+            int numInputs = newInputs[i].length;
+
+            double[] allAttrs = Arrays.copyOf(newInputs[i], numInputs + 1);
+            allAttrs[numInputs] = inst.getOutput();
+
+            instances.set(i, new Instance(inst.getId(), allAttrs, newInputs[i], inst.getOutput()));
+        }
+
+        if (numInst > 0) numAttr = newInputs[0].length + 1;
+        contentHash = null; // the content changed
+    }
+
+    /**
+     * Changes the order of the instances, for instance to place instances that are close to each other next to each
+     * other in memory. The instances get their new positions as ids, and their ids in the fold file are kept so that the
+     * results are written in the original order (see {@link #toOriginalOrder(int[])}) and the ties are broken as in the
+     * original order (see {@link #getOriginalId(int)}). Should be called before the distances are measured.
+     * @param order The current id of the instance placed at each new position.
+     */
+    void reorder(int[] order) {
+        assert distBetweenInst == null : "the instances should be reordered before the distances are measured.";
+        assert order.length == numInst : "the order should have a position for each instance.";
+
+        List<Instance> oldInstances = new ArrayList<>(instances);
+        int[] newOriginalIds = new int[numInst];
+
+        for (int p = 0; p < numInst; p++) {
+            Instance inst = oldInstances.get(order[p]);
+            instances.set(p, new Instance(p, inst.getAllAttrs(), inst.getInput(), inst.getOutput()));
+            newOriginalIds[p] = originalIds != null ? originalIds[order[p]] : order[p];
+        }
+
+        originalIds = newOriginalIds;
+        contentHash = null; // the content changed
+    }
+
+    /**
+     * Gets the id of an instance in the fold file. Ties between equal distances or weights are broken by this id, so the
+     * results do not depend on the order of the instances in the fold (see {@link #reorder(int[])}).
+     * @param instId The current id of the instance.
+     * @return The id of the instance in the fold file.
+     */
+    int getOriginalId(int instId) {
+        return originalIds != null ? originalIds[instId] : instId;
+    }
+
+    /**
+     * Gets the current ids of the instances, in the order of the fold file.
+     * @return The current id of the instance at each position of the fold file.
+     */
+    int[] getOriginalOrder() {
+        int[] order = new int[numInst];
+        for (int p = 0; p < numInst; p++)
+            order[getOriginalId(p)] = p;
+
+        return order;
+    }
+
+    /**
+     * Puts a value of each instance (such as its rank) in the order of the fold file.
+     * @param values The values, in the current order of the instances.
+     * @return The values in the original order, or the same array if the instances were not reordered.
+     */
+    int[] toOriginalOrder(int[] values) {
+        if (originalIds == null) return values;
+
+        int[] originalValues = new int[numInst];
+        for (int p = 0; p < numInst; p++)
+            originalValues[originalIds[p]] = values[p];
+
+        return originalValues;
+    }
+
+    /**
+     * Puts a value of each instance (such as its weight) in the order of the fold file.
+     * @param values The values, in the current order of the instances.
+     * @return The values in the original order, or the same array if the instances were not reordered.
+     */
+    double[] toOriginalOrder(double[] values) {
+        if (originalIds == null) return values;
+
+        double[] originalValues = new double[numInst];
+        for (int p = 0; p < numInst; p++)
+            originalValues[originalIds[p]] = values[p];
+
+        return originalValues;
+    }
+
     /**
      * Measures the distance between each pair of instances, always based on the input space.
      * @param distMetric Metric used in order to calculate distances between instances.
@@ -48,25 +176,146 @@ public class Fold {
             for (int j = 0; j < i; j++) {
                 double[] v = instances.get(j).getInput();
 
-                distBetweenInst[i][j] = Utils.measureDist(u, v, numAttr - 1, distMetric);
+                // measured from the instance that comes later in the fold file, as odd metrics depend on the order
+                distBetweenInst[i][j] = getOriginalId(i) > getOriginalId(j) ?
+                        Utils.measureDist(u, v, numAttr - 1, distMetric) :
+                        Utils.measureDist(v, u, numAttr - 1, distMetric);
                 distBetweenInst[j][i] = distBetweenInst[i][j];
             }
         }
     }
 
+    /**
+     * Gets the matrix with the distances between each pair of instances.
+     * @return The distance matrix, or null if the distances were not measured yet.
+     */
+    double[][] getDistBetweenInst() {
+        return distBetweenInst;
+    }
+
+    /**
+     * Sets the matrix with the distances between each pair of instances, for instance when it was measured before.
+     * @param distBetweenInst The distance matrix.
+     */
+    void setDistBetweenInst(double[][] distBetweenInst) {
+        assert distBetweenInst.length == numInst : "the distance matrix should have a row for each instance.";
+
+        this.distBetweenInst = distBetweenInst;
+    }
+
+    /**
+     * Releases the distance matrix or the pruned neighbor search once the instances are ranked, so that the folds kept
+     * for their metrics do not hold them.
+     */
+    public void releaseDistances() {
+        distBetweenInst = null;
+        prunedSearch = null;
+    }
+
+    /**
+     * Gets the structure that searches for the neighbors without the distance matrix.
+     * @return The structure, or null if the neighbors are searched in the distance matrix.
+     */
+    PrunedNeighborSearch getPrunedSearch() {
+        return prunedSearch;
+    }
+
+    /**
+     * Sets the structure that searches for the neighbors without the distance matrix, which is then never built.
+     * @param prunedSearch The structure.
+     */
+    void setPrunedSearch(PrunedNeighborSearch prunedSearch) {
+        this.prunedSearch = prunedSearch;
+    }
+
     /**
      * Finds the set of neighbors of a specific instance.
      * @param instId Index of the instance for which we want to find the neighbors.
      * @param numNeighbors Number of instances taken as neighbors.
      */
     void findNeighbors(int instId, int numNeighbors) {
+        linkNeighbors(instId, searchNeighbors(instId, numNeighbors));
+    }
+
+    /**
+     * Finds the set of neighbors of all instances. The searches only read the distance matrix, so they are split among
+     * the worker threads. The neighbors and associates lists are then filled in instance order, which makes the result
+     * identical to calling {@link #findNeighbors(int, int)} for each instance sequentially.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @param numThreads Number of worker threads.
+     */
+    void findAllNeighbors(int numNeighbors, int numThreads) {
+        linkAllNeighbors(searchAllNeighbors(numNeighbors, numThreads));
+    }
+
+    /**
+     * Searches for the nearest neighbors of all instances, splitting the searches among the worker threads, without
+     * modifying any instance.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @param numThreads Number of worker threads.
+     * @return The ids of the neighbors of each instance, from the nearest to the farthest.
+     */
+    int[][] searchAllNeighbors(int numNeighbors, int numThreads) {
+        int[][] neighborsIds = new int[numInst][];
+
+        Utils.parallelFor(numInst, numThreads, i -> neighborsIds[i] = searchNeighbors(i, numNeighbors));
+
+        return neighborsIds;
+    }
+
+    /**
+     * Registers the neighbors of all instances, in the order of the fold file, so that the associates lists (and thus
+     * the order in which the associates are updated) do not depend on the order of the instances in the fold.
+     * @param neighborsIds The ids of the neighbors of each instance, as returned by
+     *                     {@link #searchAllNeighbors(int, int)}.
+     */
+    void linkAllNeighbors(int[][] neighborsIds) {
+        for (int i : getOriginalOrder())
+            linkNeighbors(i, neighborsIds[i]);
+    }
+
+    /**
+     * Searches for the nearest neighbors of a specific instance without modifying any instance. It is therefore safe to
+     * call this method concurrently for different instances.
+     * @param instId Index of the instance for which we want to find the neighbors.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @return The ids of the neighbors, from the nearest to the farthest.
+     */
+    int[] searchNeighbors(int instId, int numNeighbors) {
+        return searchNeighbors(instId, numNeighbors, new int[0], metrics);
+    }
+
+    /**
+     * Searches for the nearest neighbors of a specific instance as if some other instances had already been ranked,
+     * that is, as if their distances were set to infinite by {@link #updateDistMatrix(int)}. The matrix itself is not
+     * modified.
+     * @param instId Index of the instance for which we want to find the neighbors.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @param excludedIds Ids of the instances considered ranked.
+     * @param metrics Metrics where the search is counted.
+     * @return The ids of the neighbors, from the nearest to the farthest.
+     */
+    int[] searchNeighbors(int instId, int numNeighbors, int[] excludedIds, Metrics metrics) {
+        if (prunedSearch != null) return prunedSearch.search(instId, numNeighbors, excludedIds, metrics);
+
+        metrics.increment(Metrics.Counter.NEIGHBOR_SEARCHES);
+
         double[] distOtherInst = distBetweenInst[instId];
+
+        if (excludedIds.length > 0) {
+            distOtherInst = distOtherInst.clone();
+            for (int excludedId : excludedIds)
+                distOtherInst[excludedId] = Double.POSITIVE_INFINITY;
+        }
         List<Map.Entry<Integer, Double>> neighborsIdsToDistances = new ArrayList<>();
 
         for (int i = 0; i < numInst; i++)
             neighborsIdsToDistances.add(Map.entry(i, distOtherInst[i]));
 
-        neighborsIdsToDistances.sort(Comparator.comparingDouble(Map.Entry::getValue));
+        neighborsIdsToDistances.sort(Comparator.<Map.Entry<Integer, Double>>comparingDouble(Map.Entry::getValue)
+                .thenComparingInt(entry -> getOriginalId(entry.getKey())));
+
+        int[] neighborsIds = new int[numNeighbors];
 
         int currRank = 0;
         int numNeighborsAdded = 0;
@@ -80,18 +329,32 @@ public class Fold {
             if (nextNeighborId == instId)
                 continue;
 
-            getInst(instId).addNeighbor(getInst(nextNeighborId));
+            neighborsIds[numNeighborsAdded] = nextNeighborId;
+            numNeighborsAdded++;
+        }
 
-            if (!getInst(nextNeighborId).getAssociates().contains(getInst(instId)))
-                getInst(nextNeighborId).addAssociate(getInst(instId));
+        return neighborsIds;
+    }
 
-            numNeighborsAdded++;
+    /**
+     * Registers a set of instances as the neighbors of a specific instance, and the instance as an associate of each of
+     * them.
+     * @param instId Index of the instance for which the neighbors were found.
+     * @param neighborsIds The ids of the neighbors, as returned by {@link #searchNeighbors(int, int)}.
+     */
+    void linkNeighbors(int instId, int[] neighborsIds) {
+        for (int neighborId : neighborsIds) {
+            getInst(instId).addNeighbor(getInst(neighborId));
+
+            if (!getInst(neighborId).getAssociates().contains(getInst(instId)))
+                getInst(neighborId).addAssociate(getInst(instId));
         }
 
-        assert getInst(instId).getNeighbors().size() == numNeighbors : "incorrect number of neighbors.";
+        assert getInst(instId).getNeighbors().size() == neighborsIds.length : "incorrect number of neighbors.";
     }
 
-    /** The instance with the smallest weight will be the next one to be ranked.
+    /** The instance with the smallest weight will be the next one to be ranked. Ties are broken by the id in the fold
+     * file (see {@link #getOriginalId(int)}).
      * @return The instance with the smallest weight
      */
     Instance getInstSmallestWeight() {
@@ -101,7 +364,8 @@ public class Fold {
         for (Instance inst : instances) {
             double weightCurrInst = inst.getWeight();
 
-            if (weightCurrInst < smallestWeight) {
+            if (weightCurrInst < smallestWeight || (weightCurrInst == smallestWeight && instSmallestWeight != null &&
+                    getOriginalId(inst.getId()) < getOriginalId(instSmallestWeight.getId()))) {
                 smallestWeight = weightCurrInst;
                 instSmallestWeight = inst;
             }
@@ -110,6 +374,33 @@ public class Fold {
         return instSmallestWeight;
     }
 
+    /**
+     * Gets the instances with the smallest weights, in the order in which {@link #getInstSmallestWeight()} would return
+     * them if the weights did not change: by weight and then by id in the fold file. Instances with infinite weight are
+     * not returned.
+     * @param numInstances Maximum number of instances returned.
+     * @return The instances, from the smallest weight to the largest.
+     */
+    List<Instance> getInstsSmallestWeights(int numInstances) {
+        // compares the weights with < and >, as getInstSmallestWeight does, so that 0.0 and -0.0 are tied
+        Comparator<Instance> order = (a, b) -> a.getWeight() < b.getWeight() ? -1 :
+                a.getWeight() > b.getWeight() ? 1 : Integer.compare(getOriginalId(a.getId()), getOriginalId(b.getId()));
+
+        // keeps the smallest instances seen so far, with the largest one at the head
+        PriorityQueue<Instance> smallest = new PriorityQueue<>(numInstances + 1, order.reversed());
+
+        for (Instance inst : instances) {
+            if (!(inst.getWeight() < Double.POSITIVE_INFINITY)) continue;
+
+            smallest.add(inst);
+            if (smallest.size() > numInstances) smallest.poll();
+        }
+
+        List<Instance> instsSmallestWeights = new ArrayList<>(smallest);
+        instsSmallestWeights.sort(order);
+        return instsSmallestWeights;
+    }
+
     /**
      * Gets the folder identifier.
      * @return An integer corresponding to the fold identifier.
@@ -118,6 +409,91 @@ public class Fold {
         return foldId;
     }
 
+    /**
+     * Gets the ranks of all instances.
+     * @return An array with the rank of each instance, in the same order as the instances.
+     */
+    int[] getRanks() {
+        int[] ranks = new int[numInst];
+        for (int i = 0; i < numInst; i++)
+            ranks[i] = instances.get(i).getRank();
+
+        return ranks;
+    }
+
+    /**
+     * Computes a hash of the values of all attributes of all instances, in order. Folds with the same hash have the same
+     * content, regardless of the files they were read from, so the hash can be used to identify cached results.
+     * @return The SHA-256 hash of the fold, as a hexadecimal string.
+     */
+    String getContentHash() {
+        if (contentHash != null) return contentHash;
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(8, numAttr * 8));
+
+            buffer.putInt(numInst).putInt(numAttr).flip();
+            digest.update(buffer);
+
+            for (Instance inst : instances) {
+                buffer.clear();
+                for (double attr : inst.getAllAttrs())
+                    buffer.putLong(Double.doubleToLongBits(attr));
+                buffer.flip();
+                digest.update(buffer);
+            }
+
+            StringBuilder hash = new StringBuilder();
+            for (byte b : digest.digest())
+                hash.append(String.format("%02x", b));
+
+            contentHash = hash.toString();
+            return contentHash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not supported by this platform.");
+        }
+    }
+
+    /**
+     * Estimates the memory needed to rank the instances of the fold, dominated by the distance matrix, which takes
+     * 8 * n^2 bytes for n instances. The neighbors and associates lists and the temporary lists used by the neighbor
+     * searches add an amount proportional to n.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @return The estimated memory, in bytes.
+     */
+    public long estimateRankingMemory(int numNeighbors) {
+        long distMatrixBytes = (long) numInst * numInst * Double.BYTES + (long) numInst * 16; // 16-byte array headers
+        long listsBytes = (long) numInst * (2 * numNeighbors * 8 + 2 * 40); // references plus the list objects
+        long searchBytes = (long) numInst * 64; // entry, boxed id and distance of each instance in a neighbor search
+
+        return distMatrixBytes + listsBytes + searchBytes;
+    }
+
+    /**
+     * Gets the metrics (time spent and operations performed) of the processing of the fold.
+     * @return The fold metrics.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Gets the agreement between the ranks of the approximate elimination and those of the exact one.
+     * @return The agreement, or null if it was not computed.
+     */
+    RankAgreement getRankAgreement() {
+        return rankAgreement;
+    }
+
+    /**
+     * Sets the agreement between the ranks of the approximate elimination and those of the exact one.
+     * @param rankAgreement The agreement.
+     */
+    void setRankAgreement(RankAgreement rankAgreement) {
+        this.rankAgreement = rankAgreement;
+    }
+
     /**
      * Gets a specific instance.
      * @param instId Instance identifier. For now this id is equal to the instance index.
@@ -146,6 +522,14 @@ public class Fold {
         this.numInst = numInst;
     }
 
+    /**
+     * Gets the number of attributes (input + output) of the instances (which is the same for all of them).
+     * @return The number of attributes.
+     */
+    int getNumAttr() {
+        return numAttr;
+    }
+
     /**
      * Sets the number of attributes (input + output) of the instances (which is the same for all of them).
      * @param numAttr The number of attributes.
@@ -157,10 +541,15 @@ public class Fold {
     /**
      * During the selection process, when an instance gets its rank, it should be disregarded from that point forward.
      * This method updates the matrix distBetweenInst, setting the distance to or from the disregarded instance to
-     * infinite.
+     * infinite. Without the matrix, the instance is disregarded by the pruned neighbor search instead.
      * @param instId The id of the instance that should be disregarded.
      */
     void updateDistMatrix(int instId) {
+        if (prunedSearch != null) {
+            prunedSearch.setRanked(instId);
+            return;
+        }
+
         Arrays.fill(distBetweenInst[instId], Double.POSITIVE_INFINITY);
 
         for (int i = 0; i < numInst; i++) {
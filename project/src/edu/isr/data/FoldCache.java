@@ -0,0 +1,84 @@
+package edu.isr.data;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps the folds read by a long-lived process (see edu.isr.ExperimentServer) in memory, so experiments on the same
+ * dataset do not parse the fold files again. A fold is read again if its file was modified after being cached. Each
+ * experiment receives its own copy of the fold, since the ranking process modifies the instances.
+ *
+ * The estimated size of the cached folds is limited, so a long-lived process sweeping many datasets does not keep every
+ * fold it ever read. When the limit is exceeded, the least recently used folds are discarded, except the one just read.
+ */
+public class FoldCache {
+    private final Map<String, CachedFold> folds = new LinkedHashMap<>(16, 0.75f, true); // in order of access
+    private final long maxBytes;
+    private long numBytes;
+
+    /**
+     * Creates an empty cache.
+     * @param maxBytes Maximum estimated size of the cached folds, in bytes.
+     */
+    public FoldCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Fold read from a file, together with the state of the file at the moment it was read.
+     */
+    private static final class CachedFold {
+        final Fold fold;
+        final long lastModified;
+        final long length;
+        final long numBytes; // estimated size of the fold in memory
+
+        CachedFold(Fold fold, long lastModified, long length) {
+            this.fold = fold;
+            this.lastModified = lastModified;
+            this.length = length;
+
+            // the attributes are stored twice (all of them and the inputs), plus the instance and its lists
+            numBytes = (long) fold.getNumInst() * (2L * fold.getNumAttr() * Double.BYTES + 128);
+        }
+    }
+
+    /**
+     * Returns a copy of a fold, reading its file only if it is not cached or was modified.
+     * @param inFile The fold file.
+     * @param foldId The fold identifier.
+     * @return A copy of the fold.
+     * @throws FileNotFoundException If the fold was not found or could not be read.
+     */
+    synchronized Fold getFold(File inFile, int foldId) throws FileNotFoundException {
+        String key = inFile.getAbsolutePath();
+        CachedFold cached = folds.get(key);
+
+        if (cached == null || cached.lastModified != inFile.lastModified() || cached.length != inFile.length()) {
+            long lastModified = inFile.lastModified();
+            long length = inFile.length();
+
+            cached = new CachedFold(InputHandler.readFold(inFile, foldId), lastModified, length);
+            CachedFold replaced = folds.put(key, cached);
+            if (replaced != null) numBytes -= replaced.numBytes;
+            numBytes += cached.numBytes;
+
+            // discards the least recently used folds, which come first in the map
+            Iterator<CachedFold> eldest = folds.values().iterator();
+            while (numBytes > maxBytes && folds.size() > 1) {
+                numBytes -= eldest.next().numBytes;
+                eldest.remove();
+            }
+
+            // the loading time is registered in the copy that is processed
+            Fold copy = cached.fold.copy();
+            copy.getMetrics().addAll(cached.fold.getMetrics());
+            return copy;
+        }
+
+        return cached.fold.copy();
+    }
+}
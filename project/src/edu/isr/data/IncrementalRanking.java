@@ -0,0 +1,236 @@
+package edu.isr.data;
+
+import org.apache.commons.cli.MissingOptionException;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Properties;
+import java.util.stream.IntStream;
+
+/**
+ * Keeps the weighted state of a fold (distance matrix, initial neighbors and initial weights) so that instances appended
+ * later are ranked without rebuilding it from scratch. When instances are appended, only their distances to the other
+ * instances are measured, only the instances that get one of them among their nearest neighbors have their neighbors
+ * and weights updated, and the new instances are searched and weighted. The state is then exactly the one obtained by
+ * weighting the whole fold again, so the ranks are the same as those of a full run.
+ *
+ * Only the weighting is incremental. The elimination loop modifies the state, so each call to {@link #rank()} copies
+ * the distance matrix (8 n^2 bytes) and runs the whole loop on the copy, which costs about as much as the elimination
+ * of a full run.
+ *
+ * The instances are given in memory, as to {@link InstanceRanking}, and with the same parameters, except that the
+ * inputs are not reduced, the instances are not reordered and the neighbors are always searched in the distance matrix.
+ */
+public class IncrementalRanking {
+    private final ParametersManager params;
+    private final boolean compound; // true for the remoteness functions
+
+    private Fold fold; // instances linked to their initial neighbors, with the complete distance matrix
+    private int[][] neighborsIds;
+    private double[] weights;
+    private double[] proxWeights; // only for the remoteness functions
+    private double[] surrWeights;
+
+    /**
+     * Weighs the initial instances of a dataset.
+     * @param rows The attribute values (inputs followed by the output) of each instance.
+     * @param parameters The ranking parameters, with the same names as in the parameter file (see
+     *                   {@link ParametersManager#setRankingParameters(Properties)}).
+     * @return The incremental ranking, with the initial instances weighted.
+     * @throws MissingOptionException If a required parameter was not found.
+     * @throws IllegalArgumentException If a parameter has an invalid value or asks for an input reduction, a
+     * reordering or the pruned neighbor search, if the rows do not all have the same number of attributes, or if there
+     * are not more rows than neighbors.
+     */
+    public static IncrementalRanking create(double[][] rows, Properties parameters) throws MissingOptionException {
+        ParametersManager params = new ParametersManager();
+        params.setRankingParameters(parameters);
+
+        if (!params.getReductionMethod().equals("none") || !params.getReorderingCurve().equals("none") ||
+                params.getNeighborSearch().equals("pruned"))
+            throw new IllegalArgumentException("The incremental ranking does not reduce the inputs, reorder the " +
+                    "instances or search the neighbors without the distance matrix.");
+
+        return new IncrementalRanking(InstanceRanking.toFold(rows, params), params);
+    }
+
+    /**
+     * Weighs all instances of a fold.
+     * @param fold The initial instances. The fold is copied, so it is not modified.
+     * @param params Experiment parameters.
+     */
+    IncrementalRanking(Fold fold, ParametersManager params) {
+        this.params = params;
+
+        String functionName = params.getWeightingFunction();
+        compound = functionName.equals("remoteness-x") || functionName.equals("remoteness-xy");
+
+        this.fold = fold.copy();
+        this.fold.measureDistBetweenInst(params.getDistMetric());
+
+        neighborsIds = this.fold.searchAllNeighbors(params.getNumNeighbors(), params.getNumThreads());
+        this.fold.linkAllNeighbors(neighborsIds);
+
+        int numInst = this.fold.getNumInst();
+        weights = new double[numInst];
+        proxWeights = new double[numInst];
+        surrWeights = new double[numInst];
+
+        reweigh(IntStream.range(0, numInst).toArray());
+    }
+
+    /**
+     * Appends instances to the fold and updates the distances, neighbors and weights affected by them.
+     * @param rows The attribute values (inputs followed by the output) of each new instance.
+     * @throws IllegalArgumentException If some row does not have the same number of attributes as the fold.
+     */
+    public void append(double[][] rows) {
+        int numOldInst = fold.getNumInst();
+        int numInst = numOldInst + rows.length;
+        int numAttr = fold.getNumAttr();
+        int numNeighbors = params.getNumNeighbors();
+        double distMetric = params.getDistMetric();
+
+        Fold grownFold = new Fold(fold.getFoldId());
+
+        for (int i = 0; i < numOldInst; i++) {
+            Instance inst = fold.getInst(i);
+            grownFold.addInst(new Instance(i, inst.getAllAttrs(), inst.getInput(), inst.getOutput()));
+        }
+
+        for (int i = 0; i < rows.length; i++) {
+            if (rows[i].length != numAttr)
+                throw new IllegalArgumentException("The new instances should have " + numAttr + " attributes.");
+
+            grownFold.addInst(new Instance(numOldInst + i, rows[i].clone(), Arrays.copyOf(rows[i], numAttr - 1),
+                    rows[i][numAttr - 1]));
+        }
+
+        grownFold.setNumAttr(numAttr);
+
+        // the distances between the old instances are copied, and only the rows of the new ones are measured
+        double[][] oldDistances = fold.getDistBetweenInst();
+        double[][] distances = new double[numInst][numInst];
+        for (int i = 0; i < numOldInst; i++)
+            System.arraycopy(oldDistances[i], 0, distances[i], 0, numOldInst);
+
+        // each task writes row i and column i of the matrix, below and above the diagonal, respectively
+        Utils.parallelFor(rows.length, params.getNumThreads(), r -> {
+            int i = numOldInst + r;
+            double[] u = grownFold.getInst(i).getInput();
+
+            for (int j = 0; j < i; j++) {
+                distances[i][j] = Utils.measureDist(u, grownFold.getInst(j).getInput(), numAttr - 1, distMetric);
+                distances[j][i] = distances[i][j];
+            }
+        });
+
+        grownFold.setDistBetweenInst(distances);
+
+        /* The neighbors are the first instances in the order of distance and then id, so the new neighbors of an old
+        instance are the first ones among its old neighbors and the new instances. */
+        int[][] newNeighborsIds = new int[numInst][];
+        boolean[] touched = new boolean[numInst];
+
+        Utils.parallelFor(numInst, params.getNumThreads(), i -> {
+            if (i >= numOldInst) {
+                newNeighborsIds[i] = grownFold.searchNeighbors(i, numNeighbors);
+                touched[i] = true;
+                return;
+            }
+
+            Integer[] candidates = new Integer[numNeighbors + rows.length];
+            for (int j = 0; j < numNeighbors; j++)
+                candidates[j] = neighborsIds[i][j];
+            for (int j = 0; j < rows.length; j++)
+                candidates[numNeighbors + j] = numOldInst + j;
+
+            double[] distOtherInst = distances[i];
+            Arrays.sort(candidates, Comparator.<Integer>comparingDouble(id -> distOtherInst[id])
+                    .thenComparingInt(id -> id));
+
+            newNeighborsIds[i] = new int[numNeighbors];
+            for (int j = 0; j < numNeighbors; j++)
+                newNeighborsIds[i][j] = candidates[j];
+
+            touched[i] = !Arrays.equals(newNeighborsIds[i], neighborsIds[i]);
+        });
+
+        grownFold.linkAllNeighbors(newNeighborsIds);
+
+        fold = grownFold;
+        neighborsIds = newNeighborsIds;
+        weights = Arrays.copyOf(weights, numInst);
+        proxWeights = Arrays.copyOf(proxWeights, numInst);
+        surrWeights = Arrays.copyOf(surrWeights, numInst);
+
+        // the weight of an instance only depends on the instance and its neighbors
+        reweigh(IntStream.range(0, numInst).filter(i -> touched[i]).toArray());
+    }
+
+    /**
+     * Ranks all instances, running the elimination loop on a copy of the current state, including the distance matrix.
+     * @return The rank of each instance, in the order the instances were added.
+     */
+    public int[] rank() {
+        Fold working = fold.copy();
+
+        double[][] distances = fold.getDistBetweenInst();
+        double[][] workingDistances = new double[distances.length][];
+        for (int i = 0; i < distances.length; i++)
+            workingDistances[i] = distances[i].clone();
+
+        working.setDistBetweenInst(workingDistances);
+        working.linkAllNeighbors(neighborsIds);
+
+        InstanceWeighting.setWeights(working, weights);
+
+        InstanceSelection.determineFinalRanks(working, params);
+        return working.getRanks();
+    }
+
+    /**
+     * Gets the initial weights of all instances, as written in the weights file by a full run.
+     * @return An array with the weight of each instance.
+     */
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+    /**
+     * Gets the number of instances, including the appended ones.
+     * @return The number of instances.
+     */
+    public int getNumInst() {
+        return fold.getNumInst();
+    }
+
+    /**
+     * Computes the weights of some instances, and then the compound weights of all instances for the remoteness
+     * functions, since the ordinal combination depends on the weights of all of them.
+     * @param instIds The ids of the instances to be weighted.
+     */
+    private void reweigh(int[] instIds) {
+        String functionName = params.getWeightingFunction();
+        double distMetric = params.getDistMetric();
+
+        String proxFunction = functionName.equals("remoteness-x") ? "proximity-x" : "proximity-xy";
+        String surrFunction = functionName.equals("remoteness-x") ? "surrounding-x" : "surrounding-xy";
+
+        Utils.parallelFor(instIds.length, params.getNumThreads(), t -> {
+            Instance inst = fold.getInst(instIds[t]);
+
+            if (compound) {
+                proxWeights[instIds[t]] = WeightingFunctions.applyWeightingFunction(inst, proxFunction, distMetric,
+                        fold.getMetrics());
+                surrWeights[instIds[t]] = WeightingFunctions.applyWeightingFunction(inst, surrFunction, distMetric,
+                        fold.getMetrics());
+            } else {
+                weights[instIds[t]] = WeightingFunctions.applyWeightingFunction(inst, functionName, distMetric,
+                        fold.getMetrics());
+            }
+        });
+
+        if (compound) weights = InstanceWeighting.combineWeights(proxWeights, surrWeights, params.getCombMethod());
+    }
+}
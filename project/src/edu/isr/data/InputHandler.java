@@ -1,9 +1,23 @@
 package edu.isr.data;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Scanner;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Responsible for handling the input operations necessary for running the experiment.
@@ -18,9 +32,46 @@ public class InputHandler {
      */
     public static ArrayList<Fold> readTrFolds(ParametersManager params, String foldType)
             throws FileNotFoundException {
+        return readTrFolds(params, foldType, null);
+    }
+
+    /**
+     * Reads a set of input folds, taking them from a cache of folds already read if it is provided.
+     * @param params Experiment parameters.
+     * @param foldType Flag indicating which type of fold data should be read (can be "orig" or "norm").
+     * @param foldCache Cache of folds kept by a long-lived process. May be null, in which case all folds are read.
+     * @return A set of folds.
+     * @throws FileNotFoundException If a fold was not found or could not be read.
+     */
+    public static ArrayList<Fold> readTrFolds(ParametersManager params, String foldType, FoldCache foldCache)
+            throws FileNotFoundException {
         ArrayList<Fold> folds = new ArrayList<>();
 
         int foldId = 0;
+
+        while (true) { // each iteration corresponds to a fold
+            Fold fold = readTrFold(params, foldType, foldId, foldCache);
+            if (fold == null) break; // breaks the loop if there are no more folds to read
+
+            folds.add(fold);
+
+            foldId++;
+        }
+
+        return folds;
+    }
+
+    /**
+     * Reads a single input fold, taking it from a cache of folds already read if it is provided.
+     * @param params Experiment parameters.
+     * @param foldType Flag indicating which type of fold data should be read (can be "orig" or "norm").
+     * @param foldId The fold identifier.
+     * @param foldCache Cache of folds kept by a long-lived process. May be null, in which case the fold is read.
+     * @return The fold, or null if there is no fold with this identifier.
+     * @throws FileNotFoundException If the fold could not be read.
+     */
+    public static Fold readTrFold(ParametersManager params, String foldType, int foldId, FoldCache foldCache)
+            throws FileNotFoundException {
         String foldPath = null;
 
         switch (foldType) {
@@ -35,55 +86,148 @@ public class InputHandler {
                 break;
         }
 
-        while (true) { // each iteration corresponds to a fold
-            String foldName = params.getDatasetName() + "-" + foldId + ".csv";
+        String foldName = params.getDatasetName() + "-" + foldId + ".csv";
 
-            File inFile = new File(foldPath + foldName);
-            if (!inFile.isFile()) break; // breaks the loop if there are no more folds to read
+        File inFile = new File(foldPath + foldName);
+        if (!inFile.isFile()) return null;
 
-            try (Scanner sc = new Scanner(inFile)) {
-                Fold fold = new Fold(foldId);
+        ProfilingEvents.FoldLoad event = new ProfilingEvents.FoldLoad();
+        event.begin();
 
-                int numAttr = 0;
-                int instId = 0;
+        Fold fold = foldCache != null ? foldCache.getFold(inFile, foldId) : readFold(inFile, foldId);
 
-                while (sc.hasNextLine()) { // each line corresponds to an instance
-                    // splits the line into a group of strings, each representing an attribute
-                    String[] attrs = sc.nextLine().split(",");
+        event.foldType = foldType;
+        event.finish(fold, params);
 
-                    if (instId == 0) numAttr = attrs.length; // find out the number of attributes
+        return fold;
+    }
 
-                    // copies the input attributes
-                    double[] allAttrs = new double[numAttr];
-                    double[] inputAttrs = new double[numAttr - 1];
-                    for (int i = 0; i < numAttr - 1; i++) {
-                        allAttrs[i] = Double.parseDouble(attrs[i]);
-                        inputAttrs[i] = Double.parseDouble(attrs[i]);
-                    }
+    /**
+     * Reads a single fold.
+     * @param inFile The fold file.
+     * @param foldId The fold identifier.
+     * @return The fold.
+     * @throws FileNotFoundException If the fold was not found or could not be read.
+     */
+    static Fold readFold(File inFile, int foldId) throws FileNotFoundException {
+        long startTime = System.nanoTime();
 
-                    // copies the output attribute
-                    allAttrs[numAttr - 1] = Double.parseDouble(attrs[numAttr - 1]);
-                    double outputAttr = Double.parseDouble(attrs[numAttr - 1]);
+        try (Scanner sc = new Scanner(inFile)) {
+            Fold fold = new Fold(foldId);
 
-                    fold.addInst(new Instance(instId, allAttrs, inputAttrs, outputAttr));
-                    instId++;
-                }
+            int numAttr = 0;
+            int instId = 0;
 
-                fold.setNumAttr(numAttr);
+            while (sc.hasNextLine()) { // each line corresponds to an instance
+                // splits the line into a group of strings, each representing an attribute
+                String[] attrs = sc.nextLine().split(",");
 
-                /* The instance id is zero-based, but since the id variable was incremented after the addition of the
-                 * last instance, its value contains the correct number of instances in the fold.
-                 */
-                fold.setNumInst(instId);
+                if (instId == 0) numAttr = attrs.length; // find out the number of attributes
 
-                folds.add(fold);
-            } catch (FileNotFoundException e) {
-                throw new FileNotFoundException("Fold not found: " + foldPath + foldName + ".");
+                // copies the input attributes
+                double[] allAttrs = new double[numAttr];
+                double[] inputAttrs = new double[numAttr - 1];
+                for (int i = 0; i < numAttr - 1; i++) {
+                    allAttrs[i] = Double.parseDouble(attrs[i]);
+                    inputAttrs[i] = Double.parseDouble(attrs[i]);
+                }
+
+                // copies the output attribute
+                allAttrs[numAttr - 1] = Double.parseDouble(attrs[numAttr - 1]);
+                double outputAttr = Double.parseDouble(attrs[numAttr - 1]);
+
+                fold.addInst(new Instance(instId, allAttrs, inputAttrs, outputAttr));
+                instId++;
             }
 
-            foldId++;
+            fold.setNumAttr(numAttr);
+
+            /* The instance id is zero-based, but since the id variable was incremented after the addition of the
+             * last instance, its value contains the correct number of instances in the fold.
+             */
+            fold.setNumInst(instId);
+
+            fold.getMetrics().addTime(Metrics.Phase.LOAD, System.nanoTime() - startTime);
+            return fold;
+        } catch (FileNotFoundException e) {
+            throw new FileNotFoundException("Fold not found: " + inFile.getPath() + ".");
         }
+    }
 
-        return folds;
+    /**
+     * Reads a file containing the rank of each instance of a fold, as written when the output mode is "ranks". The
+     * format ("csv", "csv.gz" or "binary") is given by the file extension.
+     * @param rankFile Path to the rank file.
+     * @return The rank of each instance.
+     * @throws IOException If the file was not found or could not be read.
+     */
+    public static int[] readRanks(String rankFile) throws IOException {
+        try (InputStream in = new BufferedInputStream(Files.newInputStream(Paths.get(rankFile)), 1 << 16)) {
+            if (rankFile.endsWith(".bin"))
+                return readBinaryRanks(in, rankFile);
+
+            InputStream textIn = rankFile.endsWith(".gz") ? new GZIPInputStream(in, 1 << 16) : in;
+            return readTextRanks(new BufferedReader(new InputStreamReader(textIn, StandardCharsets.US_ASCII)));
+        } catch (NoSuchFileException e) {
+            throw new FileNotFoundException("Rank file not found: " + rankFile + ".");
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid rank file: " + rankFile + ".");
+        }
+    }
+
+    /**
+     * Reads a text rank file, containing one rank per line.
+     * @param in Reader positioned at the beginning of the file.
+     * @return The rank of each instance.
+     * @throws IOException If the file could not be read.
+     */
+    private static int[] readTextRanks(BufferedReader in) throws IOException {
+        int[] ranks = new int[1024];
+        int numInst = 0;
+
+        String line;
+        while ((line = in.readLine()) != null) {
+            if (line.isEmpty()) continue;
+
+            if (numInst == ranks.length) ranks = Arrays.copyOf(ranks, 2 * ranks.length);
+            ranks[numInst++] = Integer.parseInt(line.trim());
+        }
+
+        return Arrays.copyOf(ranks, numInst);
+    }
+
+    /**
+     * Reads a binary rank file (see {@code OutputHandler.openOutput} for a description of the layout).
+     * @param in Stream positioned at the beginning of the file.
+     * @param rankFile Path to the rank file, used in error messages.
+     * @return The rank of each instance.
+     * @throws IOException If the file could not be read or if it is not a binary rank file.
+     */
+    private static int[] readBinaryRanks(InputStream in, String rankFile) throws IOException {
+        DataInputStream data = new DataInputStream(in);
+
+        byte[] headerBytes = new byte[OutputHandler.BINARY_HEADER_SIZE];
+        data.readFully(headerBytes);
+        ByteBuffer header = ByteBuffer.wrap(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+
+        byte[] magic = new byte[OutputHandler.BINARY_MAGIC.length];
+        header.get(magic);
+        byte version = header.get();
+        byte valueType = header.get();
+        header.getShort(); // reserved
+        int numRows = header.getInt();
+        int numCols = header.getInt();
+
+        if (!Arrays.equals(magic, OutputHandler.BINARY_MAGIC) || version != OutputHandler.BINARY_VERSION ||
+                valueType != OutputHandler.VALUE_INT || numCols != 1)
+            throw new IOException("Invalid rank file: " + rankFile + ".");
+
+        byte[] valueBytes = new byte[numRows * Integer.BYTES];
+        data.readFully(valueBytes);
+
+        int[] ranks = new int[numRows];
+        ByteBuffer.wrap(valueBytes).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().get(ranks);
+
+        return ranks;
     }
 }
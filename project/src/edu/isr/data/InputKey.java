@@ -0,0 +1,26 @@
+package edu.isr.data;
+
+import java.util.Arrays;
+
+/**
+ * Input attributes of an instance, compared by content, so that instances with identical inputs can be grouped.
+ */
+final class InputKey {
+    private final double[] input;
+    private final int hash;
+
+    InputKey(double[] input) {
+        this.input = input;
+        this.hash = Arrays.hashCode(input);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof InputKey && Arrays.equals(input, ((InputKey) other).input);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+}
@@ -0,0 +1,198 @@
+package edu.isr.data;
+
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * Reduces the number of input attributes of a fold before the distances are measured, so that every distance involves
+ * fewer dimensions. The inputs are projected either to random directions (Johnson-Lindenstrauss projection), which
+ * approximately preserves the distances and is the same for all folds of a dataset, or to the principal components of
+ * the fold. The outputs are not changed.
+ *
+ * The neighbors of a sample of instances are searched in both spaces, and the fraction of the neighbors in the full
+ * space that are also neighbors in the reduced space is reported.
+ */
+public class InputReduction {
+    private static final int NUM_SAMPLED_INST = 200; // instances whose neighbors are compared in both spaces
+
+    /**
+     * Projects the inputs of a fold according to the "reduction.method" parameter.
+     * @param fold A fold whose distances were not measured yet.
+     * @param params Experiment parameters.
+     */
+    public static void reduce(Fold fold, ParametersManager params) {
+        String method = params.getReductionMethod();
+        if (method.equals("none")) return;
+
+        int numInst = fold.getNumInst();
+        int numInputs = fold.getNumAttr() - 1;
+        int numDimensions = params.getReductionDimensions();
+
+        if (numInst == 0 || numDimensions >= numInputs) {
+            OutputHandler.printMessage("  Inputs of fold " + fold.getFoldId() + " not reduced: the fold has " +
+                    numInputs + " input attributes.", params);
+            return;
+        }
+
+        long startTime = System.nanoTime();
+
+        double[][] inputs = new double[numInst][];
+        for (int i = 0; i < numInst; i++)
+            inputs[i] = fold.getInst(i).getInput();
+
+        double[][] projection = method.equals("pca") ? getPrincipalComponents(inputs, numDimensions) :
+                getRandomProjection(numInputs, numDimensions, params.getReductionSeed());
+
+        // each task projects the inputs of one instance
+        double[][] reducedInputs = new double[numInst][numDimensions];
+        Utils.parallelFor(numInst, params.getNumThreads(), i -> {
+            for (int r = 0; r < numDimensions; r++) {
+                double sum = 0;
+                for (int c = 0; c < numInputs; c++)
+                    sum += projection[r][c] * inputs[i][c];
+
+                reducedInputs[i][r] = sum;
+            }
+        });
+
+        double agreement = measureNeighborAgreement(inputs, reducedInputs, params);
+
+        fold.replaceInputs(reducedInputs);
+        fold.getMetrics().addTime(Metrics.Phase.REDUCTION, System.nanoTime() - startTime);
+
+        OutputHandler.printMessage("  Inputs of fold " + fold.getFoldId() + " reduced from " + numInputs + " to " +
+                numDimensions + " dimensions (" + method + "). Neighbor agreement with the full space: " + agreement +
+                ".", params);
+    }
+
+    /**
+     * Builds a random projection whose entries follow a normal distribution with variance 1 / {@code numDimensions}, so
+     * that the expected squared length of the projected vectors is the same as that of the original ones.
+     * @param numInputs Number of input attributes.
+     * @param numDimensions Number of dimensions after the projection.
+     * @param seed Seed of the random number generator.
+     * @return The projection, with one row for each dimension.
+     */
+    private static double[][] getRandomProjection(int numInputs, int numDimensions, int seed) {
+        Random random = new Random(seed);
+        double scale = 1 / Math.sqrt(numDimensions);
+
+        double[][] projection = new double[numDimensions][numInputs];
+        for (double[] row : projection)
+            for (int c = 0; c < numInputs; c++)
+                row[c] = random.nextGaussian() * scale;
+
+        return projection;
+    }
+
+    /**
+     * Finds the directions of largest variance of the inputs, which are the eigenvectors of their covariance matrix.
+     * Since the distances do not change when all inputs are translated, the inputs do not need to be centered before
+     * being projected.
+     * @param inputs The input attributes of each instance.
+     * @param numDimensions Number of principal components.
+     * @return The principal components, with one row for each component, from the largest variance to the smallest.
+     */
+    private static double[][] getPrincipalComponents(double[][] inputs, int numDimensions) {
+        int numInst = inputs.length;
+        int numInputs = inputs[0].length;
+
+        double[] means = new double[numInputs];
+        for (double[] input : inputs)
+            for (int c = 0; c < numInputs; c++)
+                means[c] += input[c] / numInst;
+
+        double[][] covariances = new double[numInputs][numInputs];
+        for (double[] input : inputs) {
+            for (int r = 0; r < numInputs; r++) {
+                double deviation = input[r] - means[r];
+
+                for (int c = 0; c <= r; c++)
+                    covariances[r][c] += deviation * (input[c] - means[c]);
+            }
+        }
+
+        for (int r = 0; r < numInputs; r++)
+            for (int c = 0; c < r; c++)
+                covariances[c][r] = covariances[r][c];
+
+        EigenDecomposition decomposition = new EigenDecomposition(new Array2DRowRealMatrix(covariances, false));
+        double[] eigenvalues = decomposition.getRealEigenvalues();
+
+        int[] order = IntStream.range(0, numInputs).boxed()
+                .sorted(Comparator.comparingDouble(i -> -eigenvalues[i]))
+                .mapToInt(Integer::intValue).toArray();
+
+        double[][] components = new double[numDimensions][];
+        for (int r = 0; r < numDimensions; r++)
+            components[r] = decomposition.getEigenvector(order[r]).toArray();
+
+        return components;
+    }
+
+    /**
+     * Measures how many of the nearest neighbors of a sample of instances are the same in the full and in the reduced
+     * input spaces.
+     * @param inputs The input attributes of each instance.
+     * @param reducedInputs The reduced input attributes of each instance.
+     * @param params Experiment parameters.
+     * @return The average fraction of the neighbors in the full space that are also neighbors in the reduced space.
+     */
+    private static double measureNeighborAgreement(double[][] inputs, double[][] reducedInputs,
+                                                   ParametersManager params) {
+        int numInst = inputs.length;
+        int numNeighbors = Math.min(params.getNumNeighbors(), numInst - 1);
+        int numSampledInst = Math.min(NUM_SAMPLED_INST, numInst);
+
+        if (numNeighbors < 1) return 1;
+
+        double[] agreements = new double[numSampledInst];
+
+        Utils.parallelFor(numSampledInst, params.getNumThreads(), s -> {
+            int instId = (int) ((long) s * numInst / numSampledInst); // evenly spaced instances
+
+            int[] neighborsIds = searchNeighbors(inputs, instId, numNeighbors, params.getDistMetric());
+            int[] reducedNeighborsIds = searchNeighbors(reducedInputs, instId, numNeighbors, params.getDistMetric());
+
+            Arrays.sort(reducedNeighborsIds);
+
+            int numShared = 0;
+            for (int neighborId : neighborsIds)
+                if (Arrays.binarySearch(reducedNeighborsIds, neighborId) >= 0) numShared++;
+
+            agreements[s] = (double) numShared / numNeighbors;
+        });
+
+        return Arrays.stream(agreements).average().orElse(1);
+    }
+
+    /**
+     * Searches for the nearest neighbors of an instance, measuring its distances as the distance matrix does.
+     * @param inputs The input attributes of each instance.
+     * @param instId Index of the instance for which we want to find the neighbors.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @param distMetric Metric used in order to calculate distances between instances.
+     * @return The ids of the neighbors.
+     */
+    private static int[] searchNeighbors(double[][] inputs, int instId, int numNeighbors, double distMetric) {
+        int numInst = inputs.length;
+        int numDimensions = inputs[instId].length;
+
+        double[] distances = new double[numInst];
+        for (int j = 0; j < numInst; j++) {
+            // the matrix holds the distance from the instance with the largest index to the other one
+            distances[j] = j < instId ? Utils.measureDist(inputs[instId], inputs[j], numDimensions, distMetric) :
+                    Utils.measureDist(inputs[j], inputs[instId], numDimensions, distMetric);
+        }
+
+        return IntStream.range(0, numInst).filter(j -> j != instId).boxed()
+                .sorted(Comparator.comparingDouble(j -> distances[j]))
+                .limit(numNeighbors)
+                .mapToInt(Integer::intValue).toArray();
+    }
+}
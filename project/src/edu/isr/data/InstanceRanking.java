@@ -0,0 +1,220 @@
+package edu.isr.data;
+
+import org.apache.commons.cli.MissingOptionException;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Ranks the instances of a dataset held in memory, for programs that run in the same JVM and would otherwise write the
+ * dataset as a fold file, run the experiment and read the selections back. The ranking is the same as the one of the
+ * experiment, with the same parameters, but nothing is read from or written to the file system, and nothing is printed.
+ * The experiment itself ranks each fold through {@link #rank(Fold, ParametersManager, Checkpointer)} and only adds the
+ * checkpoints and the output files around it.
+ *
+ * Example:
+ * <pre>
+ *     Properties parameters = new Properties();
+ *     parameters.setProperty("weighting.function", "surrounding-x");
+ *     parameters.setProperty("distance.metric", "2");
+ *     parameters.setProperty("number.neighbors", "5");
+ *     parameters.setProperty("combination.method", "cardinal");
+ *
+ *     InstanceRanking ranking = InstanceRanking.rank(data, parameters); // data[i] = inputs of i followed by its output
+ *     int[] keptIds = ranking.getKeptIds(50); // removes half of the instances
+ * </pre>
+ */
+public class InstanceRanking {
+    /* The results are kept in the order of the dataset, and not the fold itself, so that its distances can be released
+    as soon as the ranking ends. */
+    private final double[] weights; // initial weight of each instance
+    private final int[] ranks; // rank of each instance
+    private final double[] foldWeights; // initial weight of each instance, in the order of the fold
+    private final RankAgreement rankAgreement;
+
+    private InstanceRanking(double[] weights, int[] ranks, double[] foldWeights, RankAgreement rankAgreement) {
+        this.weights = weights;
+        this.ranks = ranks;
+        this.foldWeights = foldWeights;
+        this.rankAgreement = rankAgreement;
+    }
+
+    /**
+     * Ranks the instances of a dataset.
+     * @param data The attributes of each instance: the input attributes followed by the output. The arrays are not
+     *             modified, and are referenced by the ranking only while it runs.
+     * @param parameters The ranking parameters, with the same names as in the parameter file (see
+     *                   {@link ParametersManager#setRankingParameters(Properties)}).
+     * @return The weights and the ranks of the instances.
+     * @throws MissingOptionException If a required parameter was not found.
+     * @throws IllegalArgumentException If a parameter has an invalid value, if the instances do not all have the same
+     * number of attributes, or if there are not more instances than neighbors.
+     * @throws IllegalStateException If the distance matrix does not fit in the heap and the pruned search cannot be
+     * chosen instead (see {@link EnginePlan}).
+     */
+    public static InstanceRanking rank(double[][] data, Properties parameters) throws MissingOptionException {
+        ParametersManager params = new ParametersManager();
+        params.setRankingParameters(parameters);
+
+        Fold fold = toFold(data, params);
+
+        // the same preparation the experiment applies to each normalized fold
+        InputReduction.reduce(fold, params);
+        SpaceFillingCurve.reorder(fold, params);
+        EnginePlan.plan(List.of(fold), params, false); // the plan is not reported, so the engines are not timed
+
+        InstanceRanking ranking = rank(fold, params, null);
+        fold.releaseDistances();
+
+        return ranking;
+    }
+
+    /**
+     * Ranks the instances of a dataset stored in a single array, one instance after the other.
+     * @param data The attributes of all instances: the input attributes of the first instance followed by its output,
+     *             then those of the second instance, and so on.
+     * @param numAttr Number of attributes of each instance, including the output.
+     * @param parameters The ranking parameters, with the same names as in the parameter file (see
+     *                   {@link ParametersManager#setRankingParameters(Properties)}).
+     * @return The weights and the ranks of the instances.
+     * @throws MissingOptionException If a required parameter was not found.
+     * @throws IllegalArgumentException If a parameter has an invalid value, if the length of the array is not a multiple
+     * of the number of attributes, or if there are not more instances than neighbors.
+     * @throws IllegalStateException If the distance matrix does not fit in the heap and the pruned search cannot be
+     * chosen instead (see {@link EnginePlan}).
+     */
+    public static InstanceRanking rank(double[] data, int numAttr, Properties parameters)
+            throws MissingOptionException {
+        if (numAttr < 1 || data.length % numAttr != 0)
+            throw new IllegalArgumentException("The length of the data should be a multiple of the number of " +
+                    "attributes.");
+
+        double[][] rows = new double[data.length / numAttr][];
+        for (int i = 0; i < rows.length; i++)
+            rows[i] = Arrays.copyOfRange(data, i * numAttr, (i + 1) * numAttr);
+
+        return rank(rows, parameters);
+    }
+
+    /**
+     * Copies a dataset held in memory to a fold.
+     * @param data The attributes of each instance: the input attributes followed by the output.
+     * @param params Ranking parameters.
+     * @return The fold, whose instances have the indices of the rows as ids.
+     * @throws IllegalArgumentException If the instances do not all have the same number of attributes, or if there are
+     * not more instances than neighbors.
+     */
+    static Fold toFold(double[][] data, ParametersManager params) {
+        int numInst = data.length;
+        int numAttr = numInst > 0 ? data[0].length : 0;
+
+        if (numAttr < 2)
+            throw new IllegalArgumentException("Each instance should have at least one input attribute and an output.");
+        if (numInst <= params.getNumNeighbors())
+            throw new IllegalArgumentException("The dataset should have more instances than neighbors.");
+
+        Fold fold = new Fold(0);
+        for (int i = 0; i < numInst; i++) {
+            if (data[i].length != numAttr)
+                throw new IllegalArgumentException("Instance " + i + " has " + data[i].length + " attributes, but " +
+                        "instance 0 has " + numAttr + ".");
+
+            double[] allAttrs = data[i].clone();
+            fold.addInst(new Instance(i, allAttrs, Arrays.copyOf(allAttrs, numAttr - 1), allAttrs[numAttr - 1]));
+        }
+        fold.setNumAttr(numAttr);
+
+        return fold;
+    }
+
+    /**
+     * Weighs the instances of a fold and determines their ranks. The fold keeps the ranks, and also the distances, which
+     * the caller may release once the results were written (see {@link Fold#releaseDistances()}).
+     * @param fold The fold, prepared as in the experiment (inputs reduced and instances reordered, if it is the case).
+     * @param params Experiment parameters, with the neighbor search already chosen.
+     * @param checkpointer Used to restore the state of an interrupted elimination and to save checkpoints periodically.
+     *                     May be null.
+     * @return The weights and the ranks of the instances.
+     */
+    static InstanceRanking rank(Fold fold, ParametersManager params, Checkpointer checkpointer) {
+        double[] weights = InstanceWeighting.weighInstances(fold, params);
+
+        // the exact elimination runs on a copy of the fold, before the approximate one modifies it
+        int[] exactRanks = params.getBlockSize() > 1 && params.getBlockAgreement() ?
+                InstanceSelection.determineExactRanks(fold, params) : null;
+
+        long startTime = System.nanoTime();
+        InstanceSelection.determineFinalRanks(fold, params, checkpointer);
+        fold.getMetrics().addTime(Metrics.Phase.ELIMINATION, System.nanoTime() - startTime);
+
+        int[] ranks = fold.getRanks();
+        RankAgreement rankAgreement = null;
+
+        if (exactRanks != null) {
+            double[] selectionLevels = params.getSelectionLevels();
+            int[] numInstKept = new int[selectionLevels.length];
+            for (int l = 0; l < selectionLevels.length; l++)
+                numInstKept[l] = InstanceSelection.getNumInstKept(fold.getNumInst(), selectionLevels[l]);
+
+            rankAgreement = new RankAgreement(exactRanks, ranks, numInstKept);
+            fold.setRankAgreement(rankAgreement);
+        }
+
+        return new InstanceRanking(fold.toOriginalOrder(weights), fold.toOriginalOrder(ranks), weights, rankAgreement);
+    }
+
+    /**
+     * Gets the initial weight of each instance, before any instance was eliminated.
+     * @return The weights, in the order of the instances in the dataset.
+     */
+    public double[] getWeights() {
+        return weights.clone();
+    }
+
+    /**
+     * Gets the rank of each instance, that is, its position in the order of elimination, counted from the last instance
+     * eliminated (rank 1) to the first one (rank n).
+     * @return The ranks, in the order of the instances in the dataset.
+     */
+    public int[] getRanks() {
+        return ranks.clone();
+    }
+
+    /**
+     * Gets the instances kept in a selection level, as written by the experiment.
+     * @param selectionLevel Percentage of instances that should be removed.
+     * @return The indices of the kept instances in the dataset, in increasing order.
+     * @throws IllegalArgumentException If the selection level is not between 0 and 100.
+     */
+    public int[] getKeptIds(double selectionLevel) {
+        if (!(selectionLevel >= 0 && selectionLevel <= 100))
+            throw new IllegalArgumentException("The selection level should be between 0 and 100: " + selectionLevel +
+                    ".");
+
+        int numInstKept = InstanceSelection.getNumInstKept(ranks.length, selectionLevel);
+
+        int[] keptIds = new int[numInstKept];
+        int numKeptIds = 0;
+        for (int i = 0; i < ranks.length && numKeptIds < numInstKept; i++)
+            if (ranks[i] <= numInstKept) keptIds[numKeptIds++] = i;
+
+        return Arrays.copyOf(keptIds, numKeptIds);
+    }
+
+    /**
+     * Gets the initial weight of each instance, in the order of the fold, as written in the weight file.
+     * @return The weights.
+     */
+    double[] getFoldWeights() {
+        return foldWeights;
+    }
+
+    /**
+     * Gets the agreement between the ranks of the block elimination and those of the exact elimination.
+     * @return The agreement, or null if it was not computed.
+     */
+    RankAgreement getRankAgreement() {
+        return rankAgreement;
+    }
+}
@@ -1,25 +1,127 @@
 package edu.isr.data;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
 /**
  * Responsible for selecting instances according to their relative importance.
  */
 public class InstanceSelection {
     /**
-     * Selects a subset of instances according to their relative importance.
+     * Ranks the instances of a fold (see {@link InstanceRanking}), writes their initial weights and selects a subset of
+     * them according to their relative importance.
      * @param origFold Set of instances on which the the selection will be applied after the ranking process.
      * @param normFold Set of instances to be weighted.
      * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
      * @param params Experiment parameters.
+     * @return An array with the initial weights of all instances.
      * @throws IOException If the output file was not found or could not be written.
      */
-    public static void selectInstances(Fold origFold, Fold normFold, String expId, ParametersManager params)
+    public static double[] selectInstances(Fold origFold, Fold normFold, String expId, ParametersManager params)
             throws IOException {
-        determineFinalRanks(normFold, params);
+        Checkpointer checkpointer = Checkpointer.create(normFold, expId, params);
 
-        for (double selectionLevel : params.getSelectionLevels())
-            applySelection(origFold, normFold, expId, params, selectionLevel);
+        InstanceRanking ranking;
+        try {
+            ranking = InstanceRanking.rank(normFold, params, checkpointer);
+        } finally {
+            if (checkpointer != null) checkpointer.close();
+        }
+
+        double[] weights = ranking.getFoldWeights();
+        OutputHandler.writeWeights(weights, expId, params, normFold); // saves the weights in a file
+
+        if (ranking.getRankAgreement() != null)
+            System.out.println("  Rank correlation with the exact elimination: " +
+                    ranking.getRankAgreement().getRankCorrelation());
+
+        writeSelection(origFold, normFold, expId, params);
+
+        // the results of the fold are complete, so it will not be resumed again
+        if (checkpointer != null) checkpointer.delete();
+
+        return weights;
+    }
+
+    /**
+     * Applies all selection levels to a fold whose instances were already ranked and writes the results.
+     * @param origFold Set of instances on which the the selection will be applied.
+     * @param normFold Set of ranked instances.
+     * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
+     * @param params Experiment parameters.
+     * @throws IOException If the output file was not found or could not be written.
+     */
+    public static void writeSelection(Fold origFold, Fold normFold, String expId, ParametersManager params)
+            throws IOException {
+        int numInst = normFold.getNumInst();
+        int[] ranks = normFold.getRanks();
+
+        double[] selectionLevels = params.getSelectionLevels();
+        int[] numInstKept = new int[selectionLevels.length];
+        for (int l = 0; l < selectionLevels.length; l++)
+            numInstKept[l] = applySelection(numInst, selectionLevels[l]);
+
+        if (params.getOutMode().equals("ranks")) {
+            // the selected instances can be obtained later from the ranks (see filterInstances)
+            OutputHandler.writeRanks(ranks, expId, params, normFold);
+        } else {
+            // all selection levels are written in a single pass over the instances
+            OutputHandler.writeInstances(origFold, normFold, numInstKept, expId, params);
+        }
+    }
+
+    /**
+     * Writes the instances of a fold that are kept in a specific selection level, based on the ranks previously written
+     * by {@link OutputHandler#writeRanks(int[], String, ParametersManager, Fold)}. The fold is streamed line by line and
+     * the instances are formatted as in the "selections" output mode, so both modes produce the same files.
+     * @param foldFile Path to the fold (usually the original one) on which the selection should be applied.
+     * @param rankFile Path to the file containing the ranks of the fold instances.
+     * @param selectionLevel Percentage of instances that should be removed.
+     * @param out Stream where the selected instances will be written.
+     * @return The number of instances written.
+     * @throws IOException If some of the files could not be read or if the output could not be written.
+     */
+    public static int filterInstances(String foldFile, String rankFile, double selectionLevel, OutputStream out)
+            throws IOException {
+        int[] ranks = InputHandler.readRanks(rankFile);
+        int numInstKept = getNumInstKept(ranks.length, selectionLevel);
+
+        OutputHandler.RowBuffer row = new OutputHandler.RowBuffer();
+        int numInstWritten = 0;
+
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(foldFile))) {
+            String line;
+            int instId = 0;
+
+            while ((line = in.readLine()) != null) {
+                if (instId >= ranks.length)
+                    throw new IOException("The fold has more instances than the rank file: " + foldFile + ".");
+
+                if (ranks[instId] <= numInstKept) {
+                    String[] attrs = line.split(",");
+
+                    row.clear();
+                    for (int i = 0; i < attrs.length; i++) {
+                        if (i > 0) row.append(',');
+                        row.append(Double.parseDouble(attrs[i]));
+                    }
+                    row.endLine();
+                    row.writeTo(out);
+
+                    numInstWritten++;
+                }
+
+                instId++;
+            }
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid fold file: " + foldFile + ".");
+        }
+
+        out.flush();
+        return numInstWritten;
     }
 
     /**
@@ -27,12 +129,108 @@ public class InstanceSelection {
      * @param fold Set of instances to be weighted.
      * @param params Experiment parameters.
      */
-    private static void determineFinalRanks(Fold fold, ParametersManager params) {
-        for (int currRank = fold.getNumInst(); currRank >= 1; currRank--) {
-            Instance instSmallestWeight = fold.getInstSmallestWeight(); // selects the next less important instance
+    static void determineFinalRanks(Fold fold, ParametersManager params) {
+        determineFinalRanks(fold, params, null);
+    }
+
+    /**
+     * Determines the order of elimination of all instances, resuming from and saving checkpoints.
+     * @param fold Set of instances to be weighted.
+     * @param params Experiment parameters.
+     * @param checkpointer Used to restore the state of an interrupted loop and to save checkpoints periodically. May be
+     *                     null, in which case the loop always starts from the beginning.
+     */
+    static void determineFinalRanks(Fold fold, ParametersManager params, Checkpointer checkpointer) {
+        determineFinalRanks(fold, params, checkpointer, params.getBlockSize() > 1);
+    }
+
+    /**
+     * Ranks a copy of a fold with the exact elimination, so that the approximate elimination can be compared with it.
+     * @param fold Set of instances just weighted, which is not modified.
+     * @param params Experiment parameters.
+     * @return The rank of each instance.
+     */
+    static int[] determineExactRanks(Fold fold, ParametersManager params) {
+        int numInst = fold.getNumInst();
+        Fold exactFold = fold.copy();
+
+        if (fold.getPrunedSearch() != null) {
+            exactFold.setPrunedSearch(fold.getPrunedSearch().copy());
+        } else {
+            double[][] distances = fold.getDistBetweenInst();
+            double[][] exactDistances = new double[numInst][];
+            for (int i = 0; i < numInst; i++)
+                exactDistances[i] = distances[i].clone();
+
+            exactFold.setDistBetweenInst(exactDistances);
+        }
+
+        int[][] neighborsIds = new int[numInst][];
+        double[] weights = new double[numInst];
+        for (int i = 0; i < numInst; i++) {
+            Instance inst = fold.getInst(i);
+            neighborsIds[i] = inst.getNeighbors().stream().mapToInt(Instance::getId).toArray();
+            weights[i] = inst.getWeight();
+        }
+
+        exactFold.linkAllNeighbors(neighborsIds);
+        InstanceWeighting.setWeights(exactFold, weights);
+
+        determineFinalRanks(exactFold, params, null, false);
+        return exactFold.getRanks();
+    }
+
+    /**
+     * Determines the order of elimination of all instances, exactly or in blocks.
+     * @param fold Set of instances to be weighted.
+     * @param params Experiment parameters.
+     * @param checkpointer Used to restore the state of an interrupted loop and to save checkpoints periodically. May be
+     *                     null, in which case the loop always starts from the beginning.
+     * @param approximate Indicates if several instances are eliminated in each step (see {@link BlockElimination}).
+     */
+    private static void determineFinalRanks(Fold fold, ParametersManager params, Checkpointer checkpointer,
+                                            boolean approximate) {
+        int numInst = fold.getNumInst();
+        int keptRank = getKeptRank(numInst, params);
+
+        // ids of the ranked instances, in the order of elimination
+        int[] eliminationOrder = new int[numInst];
+        int numEliminated = checkpointer != null ?
+                checkpointer.restore(fold, params.getNumNeighbors(), eliminationOrder) : 0;
+
+        // the steps are grouped in batches of about 1% of the instances, each one reported by a profiling event
+        int batchSize = Math.max(1, numInst / 100);
+        ProfilingEvents.EliminationBatch batchEvent = null;
+
+        ProgressReporter progress = new ProgressReporter(fold.getFoldId(), numInst - keptRank,
+                Math.min(numEliminated, numInst - keptRank), params.getProgressInterval());
+
+        // instances with rank up to this value do not have their associates updated
+        int lastUpdatedRank = Math.max(keptRank, params.getNumNeighbors()) + 1;
+        BlockElimination block = approximate ? new BlockElimination(fold, params) : null;
+        SpeculativeElimination speculation = !approximate && params.getSpeculatedEliminations() > 1 &&
+                !InstanceWeighting.reweighsFold(params) ? new SpeculativeElimination(fold, params) : null;
+
+        for (int currRank = numInst - numEliminated; currRank > keptRank; currRank--) {
+            if (batchEvent != null && batchEvent.firstRank - currRank == batchSize) {
+                batchEvent.lastRank = currRank + 1;
+                batchEvent.finish(fold, params);
+                batchEvent = null;
+            }
+
+            if (batchEvent == null) {
+                batchEvent = new ProfilingEvents.EliminationBatch();
+                batchEvent.firstRank = currRank;
+                batchEvent.begin();
+            }
+
+            // selects the next less important instance
+            Instance instSmallestWeight = block != null && currRank >= lastUpdatedRank ?
+                    block.getNextInst(currRank - lastUpdatedRank + 1) : fold.getInstSmallestWeight();
 
             instSmallestWeight.setRank(currRank); // ranks the instance by its order of elimination
             instSmallestWeight.setWeight(Double.POSITIVE_INFINITY); // the instance will be disregarded from now
+            eliminationOrder[numInst - currRank] = instSmallestWeight.getId();
 
             // removes the traces of the ranked instance out of the other instances
             fold.clearInstTraces(instSmallestWeight);
@@ -40,51 +238,91 @@ public class InstanceSelection {
             /* For instances with rank value smaller than the number of neighbors, the relative position in the ranking
             is irrelevant (and, by construction, impossible to determine). Therefore, only the first steps of the
             ranking are performed for these instances. */
-            if (currRank <= params.getNumNeighbors()) continue;
+            if (currRank <= params.getNumNeighbors()) {
+                progress.step();
+                continue;
+            }
 
             // updates the distances matrix, setting the distance to or from the ranked instance to infinite
             fold.updateDistMatrix(instSmallestWeight.getId());
 
             // updates the weights of instances that had the eliminated instance among its nearest neighbors
-            InstanceWeighting.updateAssociatesWeights(fold, instSmallestWeight, params);
+            if (block != null)
+                block.updateAssociatesWeights(instSmallestWeight);
+            else if (speculation != null)
+                speculation.updateAssociatesWeights(instSmallestWeight, currRank - lastUpdatedRank);
+            else
+                InstanceWeighting.updateAssociatesWeights(fold, instSmallestWeight, params);
+
+            progress.step();
+
+            // the associates of a block are only updated after its last instance, so checkpoints are taken between blocks
+            if (checkpointer != null && (block == null || block.isBetweenBlocks()))
+                checkpointer.maybeSave(fold, params.getNumNeighbors(), eliminationOrder, numInst - currRank + 1);
+        }
+
+        if (batchEvent != null) {
+            batchEvent.lastRank = keptRank + 1;
+            batchEvent.finish(fold, params);
+        }
+
+        if (keptRank > 0) {
+            /* The instances that were not eliminated are kept in all selection levels, so they share the same rank,
+            which is the number of instances kept in the largest level. A restored checkpoint may have ranked some of
+            them already, and their ranks are kept as well. */
+            boolean[] ranked = new boolean[numInst];
+            for (int i = 0; i < Math.max(numEliminated, numInst - keptRank); i++)
+                ranked[eliminationOrder[i]] = true;
+
+            for (int i = 0; i < numInst; i++)
+                if (!ranked[i]) fold.getInst(i).setRank(keptRank);
         }
     }
 
     /**
-     * Selects the instances that will be written in the output file.
-     * @param origFold The fold before the application of the normalization step.
-     * @param normFold The fold in which the selection will be based.
-     * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
+     * Determines the rank shared by the instances that are not eliminated when the elimination loop is truncated at the
+     * largest selection level.
+     * @param numInst Total number of instances of the fold.
      * @param params Experiment parameters.
-     * @param selectionLevel Current selection level.
-     * @throws IOException If the output file was not found or could not be written.
+     * @return The number of instances kept in the largest selection level, or 0 if all instances are eliminated.
      */
-    private static void applySelection(Fold origFold, Fold normFold, String expId, ParametersManager params,
-                                       double selectionLevel) throws IOException {
-        int numInst = normFold.getNumInst();
-        int numInstRemoved = (int) Math.round(selectionLevel / 100 * numInst);
-        int numInstKept = numInst - numInstRemoved;
+    static int getKeptRank(int numInst, ParametersManager params) {
+        // the ranks output mode writes the complete ranking, which can be filtered later in any selection level
+        if (!params.getTruncatedElimination() || !params.getOutMode().equals("selections"))
+            return 0;
 
-        Instance[] instKept = new Instance[numInstKept];
+        double maxSelectionLevel = 0;
+        for (double selectionLevel : params.getSelectionLevels())
+            maxSelectionLevel = Math.max(maxSelectionLevel, selectionLevel);
 
-        int index = 0;
-        for (int i = 0; i < numInst; i++) {
-            Instance currInst = normFold.getInst(i);
+        return getNumInstKept(numInst, maxSelectionLevel);
+    }
 
-            if (currInst.getRank() <= numInstKept) {
-                instKept[index] = origFold.getInst(i);
-                index++;
-            }
-        }
+    /**
+     * Determines how many instances will be written in the output file of a selection level. Since the ranks represent
+     * the order of elimination, the instances kept are the ones with rank smaller than or equal to this number.
+     * @param numInst Total number of instances of the fold.
+     * @param selectionLevel Current selection level.
+     * @return The number of instances kept.
+     */
+    private static int applySelection(int numInst, double selectionLevel) {
+        int numInstKept = getNumInstKept(numInst, selectionLevel);
 
         System.out.println("  Number of instances kept: " + numInstKept);
-        System.out.println("  Number of instances removed: " + numInstRemoved);
+        System.out.println("  Number of instances removed: " + (numInst - numInstKept));
         System.out.println("  Total number of instances: " + numInst + "\n");
 
-        assert index + numInstRemoved == numInst : "The index at the end of the for loop responsible for selecting" +
-                " instances (" + index + ") should be the same as the number of instances that should be kept (" +
-                numInstKept + ").";
+        return numInstKept;
+    }
 
-        OutputHandler.writeInstances(instKept, expId, params, origFold.getFoldId(), selectionLevel);
+    /**
+     * Computes the number of instances kept in a selection level.
+     * @param numInst Total number of instances of the fold.
+     * @param selectionLevel Percentage of instances that should be removed.
+     * @return The number of instances kept.
+     */
+    static int getNumInstKept(int numInst, double selectionLevel) {
+        int numInstRemoved = (int) Math.round(selectionLevel / 100 * numInst);
+        return numInst - numInstRemoved;
     }
 }
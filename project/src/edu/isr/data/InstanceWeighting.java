@@ -1,10 +1,10 @@
 package edu.isr.data;
 
-import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.function.IntUnaryOperator;
 import java.util.stream.DoubleStream;
 
 /**
@@ -12,17 +12,65 @@ import java.util.stream.DoubleStream;
  */
 public class InstanceWeighting {
     /**
-     * Assigns an initial rank for each instance.
+     * Measures the distances between the instances (unless they were already assigned, or the neighbors are searched
+     * without the distance matrix), finds their neighbors and assigns their initial weights, without writing any file.
      * @param fold Set of instances to be weighted.
-     * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
      * @param params Experiment parameters.
-     * @throws IOException If some error occurs while creating the file containing the weights.
+     * @return An array with the initial weights of all instances.
      */
-    public static void rankInstances(Fold fold, String expId, ParametersManager params) throws IOException {
-        fold.measureDistBetweenInst(params.getDistMetric()); // measures the distance between each pair of instances
+    static double[] weighInstances(Fold fold, ParametersManager params) {
+        Metrics metrics = fold.getMetrics();
+        DistanceCache distCache = DistanceCache.open(params); // null if the cache is disabled
+
+        // null if instances with identical inputs are handled separately
+        DistinctInputs distinctInputs = params.getDuplicateCollapsing() ? DistinctInputs.find(fold, params) : null;
+
+        ProfilingEvents.DistanceMatrix distEvent = new ProfilingEvents.DistanceMatrix();
+        distEvent.begin();
+        long startTime = System.nanoTime();
+
+        if (params.getPrunedNeighborSearch()) {
+            // the distances are measured on demand by the neighbor searches, so only those to the pivots are measured
+            fold.setPrunedSearch(PrunedNeighborSearch.build(fold, params.getDistMetric(), params.getNumPivots(),
+                    params.getNumThreads()));
+        } else if (fold.getDistBetweenInst() == null &&
+                (distCache == null || !distCache.loadDistances(fold, params.getDistMetric()))) {
+            // measures the distance between each pair of instances, unless they were shared (see SharedDistances)
+            if (distinctInputs != null)
+                distinctInputs.measureDistBetweenInst(params.getDistMetric(), params.getNumThreads());
+            else
+                fold.measureDistBetweenInst(params.getDistMetric());
+
+            if (distCache != null) distCache.storeDistances(fold, params.getDistMetric());
+        }
 
-        for (int i = 0; i < fold.getNumInst(); i++)
-            fold.findNeighbors(i, params.getNumNeighbors());
+        metrics.addTime(Metrics.Phase.DISTANCES, System.nanoTime() - startTime);
+        distEvent.finish(fold, params);
+
+        ProfilingEvents.NeighborGraph neighborsEvent = new ProfilingEvents.NeighborGraph();
+        neighborsEvent.begin();
+        startTime = System.nanoTime();
+
+        int[][] neighborsIds = distCache != null ?
+                distCache.loadNeighbors(fold, params.getDistMetric(), params.getNumNeighbors()) : null;
+
+        if (neighborsIds == null) {
+            neighborsIds = distinctInputs != null ?
+                    distinctInputs.searchAllNeighbors(params.getNumNeighbors(), params.getNumThreads()) :
+                    fold.searchAllNeighbors(params.getNumNeighbors(), params.getNumThreads());
+
+            if (distCache != null)
+                distCache.storeNeighbors(fold, params.getDistMetric(), params.getNumNeighbors(), neighborsIds);
+        }
+
+        fold.linkAllNeighbors(neighborsIds);
+
+        metrics.addTime(Metrics.Phase.NEIGHBORS, System.nanoTime() - startTime);
+        neighborsEvent.finish(fold, params);
+
+        ProfilingEvents.Weighting weightingEvent = new ProfilingEvents.Weighting();
+        weightingEvent.begin();
+        startTime = System.nanoTime();
 
         String functionName = params.getWeightingFunction();
         double[] weights;
@@ -30,22 +78,20 @@ public class InstanceWeighting {
         // weighs the entire fold
         if (functionName.equals("remoteness-x") || functionName.equals("remoteness-xy")) {
             // compound cases: two weighting functions will be used.
-            weights = getCompoundWeights(fold, functionName, params.getDistMetric(), params.getCombMethod());
+            weights = getCompoundWeights(fold, functionName, params.getDistMetric(), params.getCombMethod(),
+                    params.getNumThreads());
         } else {
             // simple cases: only one weighting function will be used.
-            weights = getWeights(fold, functionName, params.getDistMetric());
+            weights = getWeights(fold, functionName, params.getDistMetric(), params.getNumThreads());
         }
 
         //normalizeWeights(weights);
         setWeights(fold, weights);
-        OutputHandler.writeWeights(weights, expId, params, fold.getFoldId()); // saves the weights in a file
 
-        //todo: analyse if this is really necessary
-        /* Uses the weights to find out the rank value of each instance and then assigns the ranks to the
-        corresponding instances. */
-        int[] ranks = getRanks(weights);
-        for (int i = 0; i < fold.getNumInst(); i++)
-            fold.getInst(i).setRank(ranks[i]);
+        metrics.addTime(Metrics.Phase.WEIGHTING, System.nanoTime() - startTime);
+        weightingEvent.finish(fold, params);
+
+        return weights;
     }
 
     /**
@@ -54,19 +100,58 @@ public class InstanceWeighting {
      * @param functionName Weighting function name.
      * @param distMetric Parameter of the parameterized Minkowski metric. For example, {@code distMetric} = 1 means
      *                   Manhattan distance and {@code distMetric} = 2 means Euclidean distance.
+     * @param combMethod Method used to combine the proximity and surrounding weights ("cardinal" or "ordinal").
+     * @param numThreads Number of worker threads.
      * @return An array with the compound weights of all instances.
      */
-    private static double[] getCompoundWeights(Fold fold, String functionName, double distMetric, String combMethod) {
+    private static double[] getCompoundWeights(Fold fold, String functionName, double distMetric, String combMethod,
+                                               int numThreads) {
         String proxFunction = functionName.equals("remoteness-x") ? "proximity-x" : "proximity-xy";
         String surrFunction = functionName.equals("remoteness-x") ? "surrounding-x" : "surrounding-xy";
 
-        double[] proxWeights = getWeights(fold, proxFunction, distMetric);
-        double[] surrWeights = getWeights(fold, surrFunction, distMetric);
+        int numInst = fold.getNumInst();
+        double[] proxWeights = new double[numInst];
+        double[] surrWeights = new double[numInst];
+
+        // both functions are evaluated in the same pass, so each instance is visited by a single task
+        Utils.parallelFor(numInst, numThreads, i -> {
+            proxWeights[i] = WeightingFunctions.applyWeightingFunction(fold.getInst(i), proxFunction, distMetric,
+                    fold.getMetrics());
+            surrWeights[i] = WeightingFunctions.applyWeightingFunction(fold.getInst(i), surrFunction, distMetric,
+                    fold.getMetrics());
+        });
+
+        return combineWeights(proxWeights, surrWeights, combMethod, fold::getOriginalId);
+    }
 
-        int[] proxRanks = getRanks(proxWeights);
-        int[] surrRanks = getRanks(surrWeights);
+    /**
+     * Combines the proximity and surrounding weights of all instances into the compound weights.
+     * @param proxWeights Array with the proximity weights of all instances.
+     * @param surrWeights Array with the surrounding weights of all instances.
+     * @param combMethod Method used to combine the proximity and surrounding weights ("cardinal" or "ordinal").
+     * @return An array with the compound weights of all instances.
+     */
+    static double[] combineWeights(double[] proxWeights, double[] surrWeights, String combMethod) {
+        return combineWeights(proxWeights, surrWeights, combMethod, i -> i);
+    }
+
+    /**
+     * Combines the proximity and surrounding weights of all instances into the compound weights, breaking the ties of
+     * the ordinal combination by a key of each instance.
+     * @param proxWeights Array with the proximity weights of all instances.
+     * @param surrWeights Array with the surrounding weights of all instances.
+     * @param combMethod Method used to combine the proximity and surrounding weights ("cardinal" or "ordinal").
+     * @param tieKeys Gives the key of each instance, such as its id in the fold file (see
+     *                {@link Fold#getOriginalId(int)}).
+     * @return An array with the compound weights of all instances.
+     */
+    static double[] combineWeights(double[] proxWeights, double[] surrWeights, String combMethod,
+                                   IntUnaryOperator tieKeys) {
+        int numInst = proxWeights.length;
+
+        int[] proxRanks = getRanks(proxWeights, tieKeys);
+        int[] surrRanks = getRanks(surrWeights, tieKeys);
 
-        int numInst = fold.getNumInst();
         double[] weights = new double[numInst];
 
 
@@ -86,13 +171,16 @@ public class InstanceWeighting {
      * @param functionName Weighting function name.
      * @param distMetric Parameter of the parameterized Minkowski metric. For example, {@code distMetric} = 1 means
      *                   Manhattan distance and {@code distMetric} = 2 means Euclidean distance.
+     * @param numThreads Number of worker threads. Each thread writes the weights of a disjoint set of instances, so the
+     *                   result does not depend on this value.
      * @return An array with the weights of all instances.
      */
-    private static double[] getWeights(Fold fold, String functionName, double distMetric) {
+    private static double[] getWeights(Fold fold, String functionName, double distMetric, int numThreads) {
         double[] weights = new double[fold.getNumInst()];
 
-        for (int i = 0; i < fold.getNumInst(); i++)
-            weights[i] = WeightingFunctions.applyWeightingFunction(fold.getInst(i), functionName, distMetric);
+        Utils.parallelFor(weights.length, numThreads, i ->
+                weights[i] = WeightingFunctions.applyWeightingFunction(fold.getInst(i), functionName, distMetric,
+                        fold.getMetrics()));
 
         return weights;
     }
@@ -102,13 +190,25 @@ public class InstanceWeighting {
      * @param weights Array with the weight values of all instances.
      * @return An array with the rank of all instances.
      */
-    private static int[] getRanks(double[] weights) {
+    static int[] getRanks(double[] weights) {
+        return getRanks(weights, i -> i);
+    }
+
+    /**
+     * Creates a ranking based on an array of weight values, breaking the ties by a key of each instance.
+     * @param weights Array with the weight values of all instances.
+     * @param tieKeys Gives the key of each instance, such as its id in the fold file (see
+     *                {@link Fold#getOriginalId(int)}).
+     * @return An array with the rank of all instances.
+     */
+    static int[] getRanks(double[] weights, IntUnaryOperator tieKeys) {
         List<Map.Entry<Integer, Double>> idsToWeights = new ArrayList<>();
 
         for (int i = 0; i < weights.length; i++)
             idsToWeights.add(Map.entry(i, weights[i]));
 
-        idsToWeights.sort(Comparator.comparingDouble(Map.Entry::getValue));
+        idsToWeights.sort(Comparator.<Map.Entry<Integer, Double>>comparingDouble(Map.Entry::getValue)
+                .thenComparingInt(entry -> tieKeys.applyAsInt(entry.getKey())));
 
         int[] ranks = new int[weights.length];
 
@@ -124,7 +224,7 @@ public class InstanceWeighting {
      * @param fold Set of instances to be weighted.
      * @param weights Array with the weight values of all instances.
      */
-    private static void setWeights(Fold fold, double[] weights) {
+    static void setWeights(Fold fold, double[] weights) {
         for (int i = 0; i < fold.getNumInst(); i++)
             fold.getInst(i).setWeight(weights[i]);
     }
@@ -143,54 +243,81 @@ public class InstanceWeighting {
     }
 
     /**
-     * Updates the weights of the instance that had the eliminated instance among its nearest neighbors.
+     * Updates the weights of the instance that had the eliminated instance among its nearest neighbors. The associates
+     * are handled as a batch: their new neighbors and weights only depend on the distance matrix, so they are computed
+     * in parallel first. The neighbors lists, associates lists and weights are then updated sequentially, in the order of
+     * the associates list, leaving the fold in the same state as updating one associate at a time.
      * @param fold The fold with all training instances.
      * @param instSmallestWeight The instance that had the eliminated instance among its nearest neighbors.
      * @param params Experiment parameters.
      */
     static void updateAssociatesWeights(Fold fold, Instance instSmallestWeight, ParametersManager params) {
-        for (Instance associate : instSmallestWeight.getAssociates()) {
-            fold.getInst(associate.getId()).clearNeighborsList();
-            fold.getInst(associate.getId()).clearAssociatesList();
+        updateAssociatesWeights(fold, new ArrayList<>(instSmallestWeight.getAssociates()), params);
+    }
+
+    /**
+     * Updates the weights of a list of instances that had some of the eliminated instances among their nearest
+     * neighbors, as {@link #updateAssociatesWeights(Fold, Instance, ParametersManager)} does for a single eliminated
+     * instance.
+     * @param fold The fold with all training instances.
+     * @param associates The instances to be updated, in the order they are updated.
+     * @param params Experiment parameters.
+     */
+    static void updateAssociatesWeights(Fold fold, List<Instance> associates, ParametersManager params) {
+        if (associates.isEmpty()) return;
+
+        boolean reweighFold = reweighsFold(params);
+
+        new AssociatesUpdate(fold, associates, new int[0], !reweighFold, params, params.getNumThreads()).apply(fold);
 
-            fold.findNeighbors(associate.getId(), params.getNumNeighbors());
-            InstanceWeighting.updateInstWeights(fold, associate, params);
+        /* True for remoteness-x/xy with ordinal combination strategy. In this case it is necessary to weigh the entire
+        fold again. Since every reweighing overwrites all the weights, doing it once after all the associates were
+        updated gives the same result as doing it after each one of them. */
+        if (reweighFold) {
+            fold.getMetrics().increment(Metrics.Counter.FOLD_REWEIGHTS);
+
+            double[] newFoldWeights = getCompoundWeights(fold, params.getWeightingFunction(), params.getDistMetric(),
+                    params.getCombMethod(), params.getNumThreads());
+            setWeights(fold, newFoldWeights);
         }
     }
 
     /**
-     * Updates the weight of an specific instance.
-     * @param fold Full set of instances. Necessary for calculating instance ranks when using the remoteness function.
-     * @param inst The instance for which we want to update the weights.
+     * Indicates if the entire fold is weighted again after each elimination, which is the case of the remoteness
+     * functions with the ordinal combination strategy.
      * @param params Experiment parameters.
+     * @return True if the weight of an instance depends on the weights of all the others.
      */
-    private static void updateInstWeights(Fold fold, Instance inst, ParametersManager params) {
+    static boolean reweighsFold(ParametersManager params) {
         String functionName = params.getWeightingFunction();
-        Double distMetric = params.getDistMetric();
-        String combMethod = params.getCombMethod();
+        return (functionName.equals("remoteness-x") || functionName.equals("remoteness-xy")) &&
+                params.getCombMethod().equals("ordinal");
+    }
 
-        // true for functions other than remoteness-x/xy, plus remoteness-x/xy with cardinal combination strategy
-        if (!(functionName.equals("remoteness-x") || functionName.equals("remoteness-xy")) || combMethod.equals("cardinal")) {
-            double newWeight;
+    /**
+     * Computes the new weight of an specific instance. Not used for remoteness-x/xy with ordinal combination strategy,
+     * since in this case the weight of an instance depends on the weights of all the others.
+     * @param inst The instance for which we want to update the weights.
+     * @param neighbors The new neighbors of the instance.
+     * @param params Experiment parameters.
+     * @param metrics Metrics where the operations are counted.
+     * @return The new weight value.
+     */
+    static double getInstWeight(Instance inst, List<Instance> neighbors, ParametersManager params, Metrics metrics) {
+        String functionName = params.getWeightingFunction();
+        double distMetric = params.getDistMetric();
 
-            if (!(functionName.equals("remoteness-x") || functionName.equals("remoteness-xy"))) {
-                newWeight = WeightingFunctions.applyWeightingFunction(inst, functionName, distMetric);
-            } else {
-                String proxFunction = functionName.equals("remoteness-x") ? "proximity-x" : "proximity-xy";
-                String surrFunction = functionName.equals("remoteness-x") ? "surrounding-x" : "surrounding-xy";
+        if (!(functionName.equals("remoteness-x") || functionName.equals("remoteness-xy")))
+            return WeightingFunctions.applyWeightingFunction(inst, neighbors, functionName, distMetric, metrics);
 
-                double proxWeight = WeightingFunctions.applyWeightingFunction(inst, proxFunction, distMetric);
-                double surrWeight = WeightingFunctions.applyWeightingFunction(inst, surrFunction, distMetric);
+        String proxFunction = functionName.equals("remoteness-x") ? "proximity-x" : "proximity-xy";
+        String surrFunction = functionName.equals("remoteness-x") ? "surrounding-x" : "surrounding-xy";
 
-                newWeight = (proxWeight + surrWeight) / 2;
-            }
+        double proxWeight = WeightingFunctions.applyWeightingFunction(inst, neighbors, proxFunction, distMetric,
+                metrics);
+        double surrWeight = WeightingFunctions.applyWeightingFunction(inst, neighbors, surrFunction, distMetric,
+                metrics);
 
-            inst.setWeight(newWeight);
-        /* True for remoteness-x/xy with ordinal combination strategy. In this case it is necessary to weigh the entire
-        fold again. */
-        } else {
-            double[] newWeights = getCompoundWeights(fold, functionName, distMetric, combMethod);
-            setWeights(fold, newWeights);
-        }
+        return (proxWeight + surrWeight) / 2;
     }
 }
@@ -0,0 +1,152 @@
+package edu.isr.data;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps track of the time spent in each phase of the processing of a fold and of how many times some expensive
+ * operations were performed. The values are stored in {@link LongAdder}s, so they can be updated by the worker threads
+ * at a negligible cost.
+ */
+public class Metrics {
+    /**
+     * Phases of the processing of a fold.
+     */
+    public enum Phase {
+        LOAD("load"),
+        REDUCTION("reduction"),
+        REORDERING("reordering"),
+        DISTANCES("distances"),
+        NEIGHBORS("neighbors"),
+        WEIGHTING("weighting"),
+        ELIMINATION("elimination"),
+        OUTPUT("output");
+
+        final String name;
+
+        Phase(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Operations counted during the processing of a fold.
+     */
+    public enum Counter {
+        NEIGHBOR_SEARCHES("neighbor_searches"), // calls to Fold.searchNeighbors
+        REWEIGHTS("reweights"), // weights recomputed for a single instance after an elimination
+        FOLD_REWEIGHTS("fold_reweights"), // whole fold weighed again (ordinal remoteness) after an elimination
+        OLS_SOLVES("ols_solves"), // least-squares hyperplanes estimated by the nonlinearity function
+        SINGULAR_FALLBACKS("singular_fallbacks"), // estimations that failed due to a singular matrix
+        BYTES_WRITTEN("bytes_written"), // bytes written in the weight, rank and selection files
+        SPECULATION_ROLLBACKS("speculation_rollbacks"), // speculated eliminations discarded by the elimination loop
+        PRUNED_CANDIDATES("pruned_candidates"), // neighbor candidates skipped by the pivots of the pruned search
+        ABANDONED_DISTANCES("abandoned_distances"), // distances of the pruned search abandoned before the last dimension
+        DIMENSIONS_SUMMED("dimensions_summed"); // dimensions summed by the distances of the pruned search
+
+        final String name;
+
+        Counter(String name) {
+            this.name = name;
+        }
+    }
+
+    private final LongAdder[] phaseNanos = newAdders(Phase.values().length);
+    private final LongAdder[] counters = newAdders(Counter.values().length);
+
+    /**
+     * Adds some time to a phase.
+     * @param phase The phase.
+     * @param nanos Elapsed time, in nanoseconds.
+     */
+    public void addTime(Phase phase, long nanos) {
+        phaseNanos[phase.ordinal()].add(nanos);
+    }
+
+    /**
+     * Adds one to a counter.
+     * @param counter The counter.
+     */
+    public void increment(Counter counter) {
+        counters[counter.ordinal()].increment();
+    }
+
+    /**
+     * Adds a value to a counter.
+     * @param counter The counter.
+     * @param value The value to be added.
+     */
+    public void add(Counter counter, long value) {
+        counters[counter.ordinal()].add(value);
+    }
+
+    /**
+     * Adds all times and counters of another set of metrics to this one.
+     * @param other The other set of metrics.
+     */
+    public void addAll(Metrics other) {
+        for (Phase phase : Phase.values())
+            addTime(phase, other.getTime(phase));
+
+        for (Counter counter : Counter.values())
+            add(counter, other.getCount(counter));
+    }
+
+    /**
+     * Returns the time spent in a phase.
+     * @param phase The phase.
+     * @return The elapsed time, in nanoseconds.
+     */
+    public long getTime(Phase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * Returns the value of a counter.
+     * @param counter The counter.
+     * @return The counter value.
+     */
+    public long getCount(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Returns the header of the metrics file, with the names of the columns written by {@link #toCsvRow(int)}.
+     * @return The header, without line separator.
+     */
+    static String getCsvHeader() {
+        StringBuilder header = new StringBuilder("fold");
+
+        for (Phase phase : Phase.values())
+            header.append(',').append(phase.name).append("_ns");
+
+        for (Counter counter : Counter.values())
+            header.append(',').append(counter.name);
+
+        return header.toString();
+    }
+
+    /**
+     * Returns the times and counters as a line of the metrics file.
+     * @param foldId The fold identifier.
+     * @return The line, without line separator.
+     */
+    String toCsvRow(int foldId) {
+        StringBuilder row = new StringBuilder().append(foldId);
+
+        for (Phase phase : Phase.values())
+            row.append(',').append(getTime(phase));
+
+        for (Counter counter : Counter.values())
+            row.append(',').append(getCount(counter));
+
+        return row.toString();
+    }
+
+    private static LongAdder[] newAdders(int size) {
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++)
+            adders[i] = new LongAdder();
+
+        return adders;
+    }
+}
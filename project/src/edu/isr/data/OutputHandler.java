@@ -1,15 +1,36 @@
 package edu.isr.data;
 
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Responsible for handling the output operations necessary for running the experiment.
  */
 public class OutputHandler {
+    private static final int BUFFER_SIZE = 1 << 16; // size of the buffer of each output file, in bytes
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    // binary output format
+    static final byte[] BINARY_MAGIC = {'I', 'S', 'R', 'B'};
+    static final byte BINARY_VERSION = 1;
+    static final int BINARY_HEADER_SIZE = 16;
+    static final byte VALUE_DOUBLE = 0;
+    static final byte VALUE_INT = 1;
+
     /**
      * Prints all loaded parameters.
      * @param params Experiment parameters.
@@ -34,6 +55,15 @@ public class OutputHandler {
         System.out.println("  Combination method: " + params.getCombMethod() + "\n");
     }
 
+    /**
+     * Prints a message about the processing of a fold, unless the ranking is run in memory.
+     * @param message The message.
+     * @param params Experiment parameters.
+     */
+    static void printMessage(String message, ParametersManager params) {
+        if (!params.isQuiet()) System.out.println(message);
+    }
+
     /**
      * Create a file registering all parameters loaded.
      * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
@@ -61,67 +91,452 @@ public class OutputHandler {
     }
 
     /**
-     * Writes a set of weight values in a file.
-     * @param weights Array with the weight values of all instances.
+     * Prints the neighbor search chosen for the experiment and the estimates of each engine, and appends them to the
+     * parameter log.
      * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
      * @param params Experiment parameters.
-     * @throws IOException If some error occurs while creating the file containing the weight values.
+     * @param plan The plan.
+     * @throws IOException If some error occurs while writing the log file.
      */
-    static void writeWeights(double[] weights, String expId, ParametersManager params, int foldId) throws IOException {
-        Path outPath = Paths.get(params.getOutPath() + expId + "/weights");
+    public static void logEnginePlan(String expId, ParametersManager params, EnginePlan plan) throws IOException {
+        for (String line : plan.getDescription())
+            System.out.println(line);
+        System.out.println();
+
+        String fileName = params.getOutPath() + expId + "/logs/" + params.getDatasetName() + ".txt";
+
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName, StandardCharsets.UTF_8, true))) {
+            out.println();
+            for (String line : plan.getDescription())
+                out.println(line);
+        } catch (IOException e) {
+            throw new IOException("Error while writing the engine plan in the parameter log.");
+        }
+    }
 
+    /**
+     * Creates the folders where the weights and the selected instances will be written. It is called once per
+     * experiment, so the writing methods do not need to check for the folders every time they are called.
+     * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
+     * @param params Experiment parameters.
+     * @throws IOException If some error occurs while creating the folders.
+     */
+    public static void createOutputFolders(String expId, ParametersManager params) throws IOException {
         try {
-            // creates the folder where the weights file should be written if it does not exist yet
-            if (!Files.exists(outPath))
-                Files.createDirectories(outPath);
+            Files.createDirectories(Paths.get(params.getOutPath() + expId + "/weights"));
+
+            if (params.getOutMode().equals("ranks")) {
+                Files.createDirectories(Paths.get(params.getOutPath() + expId + "/ranks"));
+            } else {
+                for (double selectionLevel : params.getSelectionLevels())
+                    Files.createDirectories(Paths.get(params.getOutPath() + expId + "/s" + selectionLevel));
+            }
         } catch (IOException e) {
-            throw new IOException("Error while creating the folder where the weights should be written.");
+            throw new IOException("Error while creating the output folders.");
         }
+    }
+
+    /**
+     * Creates a file registering the time spent in each phase and the operations performed while processing each fold.
+     * The file is written next to the parameter log and rewritten after each fold, so it is available even if the
+     * experiment is interrupted.
+     * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
+     * @param params Experiment parameters.
+     * @param folds The folds processed so far.
+     * @throws IOException If some error occurs while creating the metrics file.
+     */
+    public static void logMetrics(String expId, ParametersManager params, List<Fold> folds) throws IOException {
+        String fileName = params.getOutPath() + expId + "/logs/" + params.getDatasetName() + "-metrics.csv";
 
-        String fileName = outPath + "/" + params.getDatasetName() + "-" + foldId + ".csv";
+        try (PrintWriter out = new PrintWriter(fileName, "UTF-8")) {
+            out.println(Metrics.getCsvHeader());
+
+            for (Fold fold : folds)
+                out.println(fold.getMetrics().toCsvRow(fold.getFoldId()));
+        } catch (IOException e) {
+            throw new IOException("Error while writing the metrics log.");
+        }
+
+        if (params.getBlockSize() > 1 && params.getBlockAgreement()) logRankAgreement(expId, params, folds);
+    }
+
+    /**
+     * Creates a file registering the agreement between the ranks of the approximate (block) elimination and those of
+     * the exact elimination of each fold. Folds whose ranks were restored from the result cache are not included.
+     * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
+     * @param params Experiment parameters.
+     * @param folds The folds processed so far.
+     * @throws IOException If some error occurs while creating the agreement file.
+     */
+    private static void logRankAgreement(String expId, ParametersManager params, List<Fold> folds)
+            throws IOException {
+        String fileName = params.getOutPath() + expId + "/logs/" + params.getDatasetName() + "-agreement.csv";
 
         try (PrintWriter out = new PrintWriter(fileName, "UTF-8")) {
+            out.println(RankAgreement.getCsvHeader(params.getSelectionLevels()));
+
+            for (Fold fold : folds)
+                if (fold.getRankAgreement() != null) out.println(fold.getRankAgreement().toCsvRow(fold.getFoldId()));
+        } catch (IOException e) {
+            throw new IOException("Error while writing the rank agreement log.");
+        }
+    }
+
+    /**
+     * Writes a set of weight values in a file.
+     * @param weights Array with the weight values of all instances.
+     * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
+     * @param params Experiment parameters.
+     * @param fold The weighted fold.
+     * @throws IOException If some error occurs while creating the file containing the weight values.
+     */
+    static void writeWeights(double[] weights, String expId, ParametersManager params, Fold fold) throws IOException {
+        OutputEventScope scope = new OutputEventScope(fold, params, "weights");
+        String fileName = params.getOutPath() + expId + "/weights/" + params.getDatasetName() + "-" + fold.getFoldId();
+        weights = fold.toOriginalOrder(weights); // the weights are written in the order of the fold file
+
+        try (OutputStream out = openOutput(fileName, params, weights.length, 1, VALUE_DOUBLE, fold.getMetrics())) {
+            RowBuffer row = new RowBuffer(params.getOutFormat().equals("binary"));
+
             // writes the weight values
-            for (double weightValue : weights)
-                out.println(weightValue);
+            for (double weightValue : weights) {
+                row.clear();
+                row.append(weightValue);
+                row.endLine();
+                row.writeTo(out);
+            }
         } catch (IOException e) {
             throw new IOException("Error while writing the weights.");
         }
+
+        scope.finish();
     }
 
     /**
-     * Write the set of selected instances in the output file.
-     * @param instKept Array with the selected instances.
+     * Writes the rank of each instance in a file, one per line and in the same order as the instances in the fold. This
+     * file replaces the sets of selected instances of all selection levels: the instances kept in a level are the ones
+     * with rank smaller than or equal to the number of instances kept.
+     * @param ranks The rank of each instance, which represents its order of elimination.
      * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
      * @param params Experiment parameters.
-     * @param selectionLevel Current selection level.
-     * @throws IOException If the output file was not found or could not be written.
+     * @param fold The ranked fold.
+     * @throws IOException If some error occurs while creating the file containing the ranks.
      */
-    static void writeInstances(Instance[] instKept, String expId, ParametersManager params, int foldId,
-                               double selectionLevel) throws IOException {
-        Path outPath = Paths.get(params.getOutPath() + expId + "/s" + selectionLevel);
+    static void writeRanks(int[] ranks, String expId, ParametersManager params, Fold fold) throws IOException {
+        OutputEventScope scope = new OutputEventScope(fold, params, "ranks");
+        String fileName = params.getOutPath() + expId + "/ranks/" + params.getDatasetName() + "-" + fold.getFoldId();
+        ranks = fold.toOriginalOrder(ranks); // the ranks are written in the order of the fold file
 
-        try {
-            // creates the folder where the weights file should be written if it does not exist yet
-            if (!Files.exists(outPath))
-                Files.createDirectories(outPath);
+        try (OutputStream out = openOutput(fileName, params, ranks.length, 1, VALUE_INT, fold.getMetrics())) {
+            RowBuffer row = new RowBuffer(params.getOutFormat().equals("binary"));
+
+            for (int rank : ranks) {
+                row.clear();
+                row.append(rank);
+                row.endLine();
+                row.writeTo(out);
+            }
         } catch (IOException e) {
-            throw new IOException("Error while creating the folder where the instances should be written.");
+            throw new IOException("Error while writing the ranks.");
         }
 
-        String fileName = outPath + "/" + params.getDatasetName() + "-" + foldId + ".csv";
+        scope.finish();
+    }
 
-        try (PrintWriter out = new PrintWriter(fileName, "UTF-8")) {
-            // writes the weight values
-            for (Instance inst : instKept) {
-                for (Double inputAttrValue : inst.getInput()) {
-                    out.print(inputAttrValue + ",");
+    /**
+     * Writes the sets of selected instances of all selection levels in the output files. The instances are visited only
+     * once: each row is formatted a single time and then written in the file of every selection level that keeps it.
+     * @param origFold The fold before the application of the normalization step.
+     * @param normFold The fold in which the selection was based, whose instances hold their final ranks.
+     * @param numInstKept Number of instances kept in each selection level, in the same order as the levels returned by
+     *                    {@link ParametersManager#getSelectionLevels()}.
+     * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
+     * @param params Experiment parameters.
+     * @throws IOException If the output file was not found or could not be written.
+     */
+    static void writeInstances(Fold origFold, Fold normFold, int[] numInstKept, String expId,
+                               ParametersManager params) throws IOException {
+        OutputEventScope scope = new OutputEventScope(normFold, params, "selections");
+
+        int[] ranks = normFold.toOriginalOrder(normFold.getRanks()); // same order as the original fold
+        double[] selectionLevels = params.getSelectionLevels();
+        int numLevels = selectionLevels.length;
+
+        OutputStream[] outs = new OutputStream[numLevels];
+        int[] numInstWritten = new int[numLevels];
+
+        int maxNumInstKept = 0;
+        for (int kept : numInstKept)
+            maxNumInstKept = Math.max(maxNumInstKept, kept);
+
+        try {
+            for (int l = 0; l < numLevels; l++) {
+                String fileName = params.getOutPath() + expId + "/s" + selectionLevels[l] + "/" +
+                        params.getDatasetName() + "-" + origFold.getFoldId();
+                outs[l] = openOutput(fileName, params, numInstKept[l], origFold.getNumAttr(), VALUE_DOUBLE,
+                        normFold.getMetrics());
+            }
+
+            RowBuffer row = new RowBuffer(params.getOutFormat().equals("binary"));
+
+            for (int i = 0; i < ranks.length; i++) {
+                if (ranks[i] > maxNumInstKept) continue; // the instance is not kept in any selection level
+
+                Instance inst = origFold.getInst(i);
+
+                row.clear();
+                for (double inputAttrValue : inst.getInput()) {
+                    row.append(inputAttrValue);
+                    row.append(',');
                 }
+                row.append(inst.getOutput());
+                row.endLine();
 
-                out.println(inst.getOutput());
+                for (int l = 0; l < numLevels; l++) {
+                    if (ranks[i] <= numInstKept[l]) {
+                        row.writeTo(outs[l]);
+                        numInstWritten[l]++;
+                    }
+                }
             }
         } catch (IOException e) {
-            throw new IOException("Error while writing the weights.");
+            throw new IOException("Error while writing the selected instances.");
+        } finally {
+            closeAll(outs);
+        }
+
+        for (int l = 0; l < numLevels; l++)
+            assert numInstWritten[l] == numInstKept[l] : "The number of instances written (" + numInstWritten[l] +
+                    ") should be the same as the number of instances that should be kept (" + numInstKept[l] + ").";
+
+        scope.finish();
+    }
+
+    /**
+     * Opens a buffered output file in the format given by the "output.format" parameter. Plain and compressed CSV files
+     * are written as text, one row per line. Binary files start with a 16-byte header (the magic bytes "ISRB", a version
+     * byte, a value type byte, two reserved bytes, and the number of rows and of columns as 32-bit integers), followed by
+     * the values in row-major order. All binary numbers are little-endian.
+     * @param fileName Path to the file, without extension (which depends on the format).
+     * @param params Experiment parameters.
+     * @param numRows Number of rows that will be written.
+     * @param numCols Number of values per row.
+     * @param valueType Type of the values: {@code VALUE_DOUBLE} (64-bit floating point) or {@code VALUE_INT} (32-bit
+     *                  integer). Only used in the binary header.
+     * @param metrics Metrics of the fold, where the bytes written in the file are counted.
+     * @return The output stream. For binary files, the header has already been written.
+     * @throws IOException If the file could not be created.
+     */
+    private static OutputStream openOutput(String fileName, ParametersManager params, int numRows, int numCols,
+                                           byte valueType, Metrics metrics) throws IOException {
+        String outFormat = params.getOutFormat();
+
+        switch (outFormat) {
+            case "csv.gz":
+                // the compressed stream keeps its own buffer, so the file stream does not need one
+                return new BufferedOutputStream(new GZIPOutputStream(new CountingOutputStream(
+                        new FileOutputStream(fileName + ".csv.gz"), metrics), BUFFER_SIZE), BUFFER_SIZE);
+            case "binary":
+                OutputStream out = new BufferedOutputStream(new CountingOutputStream(
+                        new FileOutputStream(fileName + ".bin"), metrics), BUFFER_SIZE);
+
+                ByteBuffer header = ByteBuffer.allocate(BINARY_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.put(BINARY_MAGIC).put(BINARY_VERSION).put(valueType).putShort((short) 0);
+                header.putInt(numRows).putInt(numCols);
+                out.write(header.array());
+
+                return out;
+            default:
+                return new BufferedOutputStream(new CountingOutputStream(new FileOutputStream(fileName + ".csv"),
+                        metrics), BUFFER_SIZE);
+        }
+    }
+
+    /**
+     * Closes a set of output streams, even if some of them fail to close.
+     * @param outs The output streams. Null elements are ignored.
+     * @throws IOException If some of the streams could not be closed.
+     */
+    private static void closeAll(OutputStream[] outs) throws IOException {
+        IOException closeError = null;
+
+        for (OutputStream out : outs) {
+            if (out == null) continue;
+
+            try {
+                out.close();
+            } catch (IOException e) {
+                closeError = e;
+            }
+        }
+
+        if (closeError != null) throw new IOException("Error while closing the output files.");
+    }
+
+    /**
+     * Measures the writing of the output files of a fold: registers the elapsed time in the fold metrics and emits a
+     * profiling event with the number of bytes written.
+     */
+    private static final class OutputEventScope {
+        private final Fold fold;
+        private final ParametersManager params;
+        private final ProfilingEvents.OutputWrite event = new ProfilingEvents.OutputWrite();
+        private final long startTime = System.nanoTime();
+        private final long startBytes;
+
+        OutputEventScope(Fold fold, ParametersManager params, String outType) {
+            this.fold = fold;
+            this.params = params;
+
+            startBytes = fold.getMetrics().getCount(Metrics.Counter.BYTES_WRITTEN);
+            event.outType = outType;
+            event.begin();
+        }
+
+        /**
+         * Finishes the measurement. Should be called only if the files were successfully written.
+         */
+        void finish() {
+            Metrics metrics = fold.getMetrics();
+            metrics.addTime(Metrics.Phase.OUTPUT, System.nanoTime() - startTime);
+
+            event.bytesWritten = metrics.getCount(Metrics.Counter.BYTES_WRITTEN) - startBytes;
+            event.finish(fold, params);
+        }
+    }
+
+    /**
+     * Output stream that counts the bytes that go through it.
+     */
+    private static final class CountingOutputStream extends FilterOutputStream {
+        private final Metrics metrics;
+
+        CountingOutputStream(OutputStream out, Metrics metrics) {
+            super(out);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            metrics.increment(Metrics.Counter.BYTES_WRITTEN);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            metrics.add(Metrics.Counter.BYTES_WRITTEN, len);
+        }
+    }
+
+    /**
+     * Reusable buffer in which a row of numbers is formatted before being written. In text mode, the numbers are
+     * formatted exactly as {@link Double#toString(double)} would do it, but without creating a string for each value. In
+     * binary mode, they are stored as little-endian values and separators are ignored.
+     */
+    static final class RowBuffer {
+        private final boolean binary;
+        private final StringBuilder digits = new StringBuilder(32);
+        private byte[] bytes = new byte[256];
+        private int length;
+
+        /**
+         * Creates a text buffer.
+         */
+        RowBuffer() {
+            this(false);
+        }
+
+        /**
+         * Creates a text or binary buffer.
+         * @param binary Flag indicating if the numbers should be stored as binary values instead of text.
+         */
+        RowBuffer(boolean binary) {
+            this.binary = binary;
+        }
+
+        /**
+         * Empties the buffer, so a new row can be formatted.
+         */
+        void clear() {
+            length = 0;
+        }
+
+        /**
+         * Appends a number to the row.
+         * @param value The number.
+         */
+        void append(double value) {
+            if (binary) {
+                appendLittleEndian(Double.doubleToRawLongBits(value), Double.BYTES);
+                return;
+            }
+
+            digits.setLength(0);
+            digits.append(value);
+
+            ensureCapacity(digits.length());
+            for (int i = 0; i < digits.length(); i++)
+                bytes[length++] = (byte) digits.charAt(i);
+        }
+
+        /**
+         * Appends an integer to the row.
+         * @param value The integer.
+         */
+        void append(int value) {
+            if (binary) {
+                appendLittleEndian(value, Integer.BYTES);
+                return;
+            }
+
+            digits.setLength(0);
+            digits.append(value);
+
+            ensureCapacity(digits.length());
+            for (int i = 0; i < digits.length(); i++)
+                bytes[length++] = (byte) digits.charAt(i);
+        }
+
+        /**
+         * Appends an ASCII character to the row (ignored in binary mode).
+         * @param c The character.
+         */
+        void append(char c) {
+            if (binary) return;
+
+            ensureCapacity(1);
+            bytes[length++] = (byte) c;
+        }
+
+        /**
+         * Ends the row with the platform line separator, as {@link PrintWriter#println()} does (ignored in binary mode).
+         */
+        void endLine() {
+            if (binary) return;
+
+            for (int i = 0; i < LINE_SEPARATOR.length(); i++)
+                append(LINE_SEPARATOR.charAt(i));
+        }
+
+        /**
+         * Writes the row to an output stream.
+         * @param out The output stream.
+         * @throws IOException If the row could not be written.
+         */
+        void writeTo(OutputStream out) throws IOException {
+            out.write(bytes, 0, length);
+        }
+
+        private void appendLittleEndian(long bits, int numBytes) {
+            ensureCapacity(numBytes);
+            for (int i = 0; i < numBytes; i++)
+                bytes[length++] = (byte) (bits >>> (8 * i));
+        }
+
+        private void ensureCapacity(int extraLength) {
+            if (length + extraLength > bytes.length)
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + extraLength));
         }
     }
 }
@@ -5,6 +5,7 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.List;
 import java.util.Properties;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -34,6 +35,29 @@ public class ParametersManager {
     private double distMetric;
     private int numNeighbors;
     private String combMethod;
+    private int numThreads;
+    private String outMode;
+    private String outFormat;
+    private double progressInterval;
+    private double checkpointInterval;
+    private String resultCachePath;
+    private int resultCacheSize;
+    private String distanceCachePath;
+    private int distanceCacheSize;
+    private String distanceSharing;
+    private String truncatedElimination;
+    private int speculatedEliminations;
+    private int blockSize;
+    private double blockTolerance;
+    private String blockAgreement;
+    private String duplicateCollapsing;
+    private String reductionMethod;
+    private int reductionDimensions;
+    private int reductionSeed;
+    private String reorderingCurve;
+    private String neighborSearch;
+    private int numPivots;
+    private boolean quiet; // true when the ranking is run in memory, without printing messages
 
     // the loaded parameters will be written in a file, which will be saved in the output directory
     private final StringBuilder loadedParametersLog = new StringBuilder();
@@ -118,7 +142,76 @@ public class ParametersManager {
                 "value corresponds to a set of output files."),
         DISTANCE_METRIC("distance.metric", "Distance metric."),
         NUM_NEIGHBORS("number.neighbors", "Number of instances taken as neighbors."),
-        COMB_METHOD("combination.method", "Method use to combine weights when using the remoteness weighting function.");
+        COMB_METHOD("combination.method", "Method use to combine weights when using the remoteness weighting function."),
+        NUM_THREADS("number.threads", "Number of worker threads used to find the neighbors and weigh the instances " +
+                "(optional). Defaults to the number of available processors."),
+        OUTPUT_MODE("output.mode", "Files written for each fold (optional): \"selections\" (default) writes the " +
+                "instances kept in each selection level; \"ranks\" writes a single file with the rank of each " +
+                "instance, from which any selection level can be obtained with edu.isr.SelectionFilter."),
+        OUTPUT_FORMAT("output.format", "Format of the weight, rank and selection files (optional): \"csv\" " +
+                "(default), \"csv.gz\" (gzip-compressed CSV) or \"binary\" (little-endian values after a 16-byte " +
+                "header)."),
+        PROGRESS_INTERVAL("progress.interval", "Interval, in seconds, between progress reports of the elimination " +
+                "loop (optional). The default value, 0, disables the reports."),
+        CHECKPOINT_INTERVAL("checkpoint.interval", "Interval, in seconds, between checkpoints of the elimination " +
+                "loop (optional). An interrupted experiment resumes each fold from its last checkpoint. The default " +
+                "value, 0, disables the checkpoints."),
+        RESULT_CACHE_PATH("result.cache.path", "Folder where the ranks of each fold are cached (optional). A fold " +
+                "whose content and ranking parameters match a cached result is not ranked again. Empty by default, " +
+                "which disables the cache."),
+        RESULT_CACHE_SIZE("result.cache.size", "Maximum size, in megabytes, of the result cache (optional). The " +
+                "least recently used results are evicted when it is exceeded. Defaults to 256."),
+        DISTANCE_CACHE_PATH("distance.cache.path", "Folder where the distance matrix and the initial neighbors of " +
+                "each fold are cached (optional). They are shared by all weighting functions and can be used by " +
+                "several experiments at once. Empty by default, which disables the cache."),
+        DISTANCE_CACHE_SIZE("distance.cache.size", "Maximum size, in megabytes, of the distance cache (optional). " +
+                "The least recently used files are evicted when it is exceeded. Defaults to 1024."),
+        DISTANCE_SHARING("distance.sharing", "Indicates if the distances between instances that appear in more " +
+                "than one training fold should be measured only once (optional): \"true\" or \"false\" (default). " +
+                "Only applied when the distance metric is an even integer, and not supported by the batch runner, " +
+                "which reads the folds one at a time."),
+        TRUNCATED_ELIMINATION("elimination.truncated", "Indicates if the elimination loop should stop once the " +
+                "instances removed by the largest selection level are ranked (optional): \"true\" or \"false\" " +
+                "(default). The remaining instances get the same rank. Only applied in the \"selections\" output " +
+                "mode, since the ranks output mode writes the complete ranking."),
+        SPECULATED_ELIMINATIONS("elimination.speculation", "Number of eliminations whose updates are computed in " +
+                "advance, in parallel, by the elimination loop (optional). The updates are discarded when an earlier " +
+                "elimination changes them, so the ranks do not change. The default value, 1, disables the " +
+                "speculation, which is also not used for the remoteness functions with the ordinal combination " +
+                "method."),
+        BLOCK_SIZE("elimination.block.size", "Maximum number of instances eliminated in a single step of the " +
+                "elimination loop, with a single update of their associates (optional). The ranks are approximate. " +
+                "The default value, 1, keeps the exact elimination."),
+        BLOCK_TOLERANCE("elimination.block.tolerance", "Relative tolerance of the weights of the instances " +
+                "eliminated together (optional). Besides the instances whose neighborhoods do not overlap, the ones " +
+                "whose weights differ from the smallest weight by at most this fraction of it are eliminated in the " +
+                "same step. Defaults to 0."),
+        BLOCK_AGREEMENT("elimination.block.agreement", "Indicates if the ranks of the block elimination should be " +
+                "compared with those of the exact elimination (optional): \"true\" or \"false\" (default). The " +
+                "exact elimination is also run, and the agreement is written in the logs folder."),
+        DUPLICATE_COLLAPSING("duplicate.collapsing", "Indicates if the distances and the initial neighbors should be " +
+                "computed only once for instances with identical input attributes (optional): \"true\" or \"false\" " +
+                "(default). Only applied when the distance metric is an even integer."),
+        REDUCTION_METHOD("reduction.method", "Method used to reduce the number of input attributes of the " +
+                "normalized folds before the distances are measured (optional): \"none\" (default), " +
+                "\"random-projection\" or \"pca\"."),
+        REDUCTION_DIMENSIONS("reduction.dimensions", "Number of input attributes after the reduction (optional). " +
+                "Defaults to 10."),
+        REDUCTION_SEED("reduction.seed", "Seed of the random projection (optional). Defaults to 0."),
+        REORDERING_CURVE("reordering.curve", "Space-filling curve along which the instances of the normalized " +
+                "folds are sorted before the distances are measured, so that instances close to each other are also " +
+                "close in memory (optional): \"none\" (default), \"morton\" or \"hilbert\". The results are " +
+                "written in the original order of the instances."),
+        NEIGHBOR_SEARCH("neighbor.search", "How the nearest neighbors are searched (optional): \"matrix\" " +
+                "measures the distance between each pair of instances beforehand, while \"pruned\" measures them on " +
+                "demand, skipping the candidates excluded by the distances to a few pivot instances and abandoning " +
+                "the distances that exceed the one of the current k-th neighbor. The pruned search requires a " +
+                "distance metric of at least 1, and cannot be combined with the distance cache, the distance sharing " +
+                "or the duplicate collapsing. \"auto\" (default) chooses one of them from the estimated memory and " +
+                "time of the largest fold and the available heap, but only chooses the pruned search when the " +
+                "distance metric is an even integer, since it measures different distances for the other metrics."),
+        NUM_PIVOTS("neighbor.search.pivots", "Number of pivot instances of the pruned neighbor search (optional). " +
+                "Defaults to 8.");
 
         final String name;
         final String description;
@@ -146,6 +239,62 @@ public class ParametersManager {
         assignParameters();
     }
 
+    /**
+     * Sets all the parameters necessary for running the experiment from a set of properties, using the same names as in
+     * the parameter file. Useful when the parameters do not come from a file.
+     * @param parameters The parameters.
+     * @throws MissingOptionException If a required parameter was not found.
+     * @throws NumberFormatException If a parameter that is supposed to be integer is actually a string.
+     */
+    public void setParameters(Properties parameters) throws MissingOptionException, NumberFormatException {
+        loadedParameters = new Properties();
+        loadedParameters.putAll(parameters);
+
+        assignParameters();
+    }
+
+    /**
+     * Sets the parameters of a ranking run in memory (see {@link InstanceRanking}), using the same names as in the
+     * parameter file. The paths and the dataset name are not needed, and the parameters that would read or write files
+     * (caches, checkpoints and progress reports) are ignored, so that the ranking neither touches the file system nor
+     * prints anything. The truncated elimination is ignored as well, since the complete ranking is returned.
+     * @param parameters The ranking parameters: weighting function, distance metric, number of neighbors, combination
+     *                   method and, optionally, any of the other parameters that affect the ranking.
+     * @throws MissingOptionException If a required parameter was not found.
+     * @throws NumberFormatException If a parameter that is supposed to be integer is actually a string.
+     * @throws IllegalArgumentException If a parameter has an invalid value.
+     */
+    public void setRankingParameters(Properties parameters) throws MissingOptionException, NumberFormatException {
+        Properties rankingParameters = new Properties();
+        rankingParameters.putAll(parameters);
+
+        // the folds are given in memory and the results are returned, so the paths are never used
+        for (ParameterList key : new ParameterList[]{ParameterList.ORIGINAL_FOLDS_PATH,
+                ParameterList.NORMALIZED_FOLDS_PATH, ParameterList.OUTPUT_PATH, ParameterList.DATASET_NAME})
+            rankingParameters.setProperty(key.name, "memory");
+
+        rankingParameters.putIfAbsent(ParameterList.SELECTION_LEVELS.name, "0");
+
+        for (ParameterList key : new ParameterList[]{ParameterList.RESULT_CACHE_PATH,
+                ParameterList.DISTANCE_CACHE_PATH, ParameterList.CHECKPOINT_INTERVAL, ParameterList.PROGRESS_INTERVAL,
+                ParameterList.TRUNCATED_ELIMINATION})
+            rankingParameters.remove(key.name);
+
+        quiet = true;
+        setParameters(rankingParameters);
+    }
+
+    /**
+     * Loads a parameter file, merged with its parent files, without checking or assigning the parameters. Useful for
+     * sending the parameters to another process.
+     * @param parameterFilePath Path to the child parameter file.
+     * @return A set of properties containing all the loaded parameters.
+     * @throws IOException If some error occurs while reading any of the parameter files.
+     */
+    public static Properties readParameterFile(String parameterFilePath) throws IOException {
+        return new ParametersManager().loadParameterFile(parameterFilePath);
+    }
+
     /**
      * Loads all the parameters.
      * @param parameterFilePath Path to the child parameter file.
@@ -195,23 +344,114 @@ public class ParametersManager {
         distMetric = getDoubleParameter(ParameterList.DISTANCE_METRIC);
         numNeighbors = getIntegerParameter(ParameterList.NUM_NEIGHBORS);
         combMethod = getStringParameter(ParameterList.COMB_METHOD, false);
+        numThreads = getIntegerParameter(ParameterList.NUM_THREADS, Runtime.getRuntime().availableProcessors());
+        outMode = getStringParameter(ParameterList.OUTPUT_MODE, "selections");
+        outFormat = getStringParameter(ParameterList.OUTPUT_FORMAT, "csv");
+        progressInterval = getDoubleParameter(ParameterList.PROGRESS_INTERVAL, 0);
+        checkpointInterval = getDoubleParameter(ParameterList.CHECKPOINT_INTERVAL, 0);
+        resultCachePath = getStringParameter(ParameterList.RESULT_CACHE_PATH, "");
+        resultCacheSize = getIntegerParameter(ParameterList.RESULT_CACHE_SIZE, 256);
+        distanceCachePath = getStringParameter(ParameterList.DISTANCE_CACHE_PATH, "");
+        distanceCacheSize = getIntegerParameter(ParameterList.DISTANCE_CACHE_SIZE, 1024);
+        distanceSharing = getStringParameter(ParameterList.DISTANCE_SHARING, "false");
+        truncatedElimination = getStringParameter(ParameterList.TRUNCATED_ELIMINATION, "false");
+        speculatedEliminations = getIntegerParameter(ParameterList.SPECULATED_ELIMINATIONS, 1);
+        blockSize = getIntegerParameter(ParameterList.BLOCK_SIZE, 1);
+        blockTolerance = getDoubleParameter(ParameterList.BLOCK_TOLERANCE, 0);
+        blockAgreement = getStringParameter(ParameterList.BLOCK_AGREEMENT, "false");
+        duplicateCollapsing = getStringParameter(ParameterList.DUPLICATE_COLLAPSING, "false");
+        reductionMethod = getStringParameter(ParameterList.REDUCTION_METHOD, "none");
+        reductionDimensions = getIntegerParameter(ParameterList.REDUCTION_DIMENSIONS, 10);
+        reductionSeed = getIntegerParameter(ParameterList.REDUCTION_SEED, 0);
+        reorderingCurve = getStringParameter(ParameterList.REORDERING_CURVE, "none");
+        neighborSearch = getStringParameter(ParameterList.NEIGHBOR_SEARCH, "auto");
+        numPivots = getIntegerParameter(ParameterList.NUM_PIVOTS, 8);
 
         assertParameters();
     }
 
     /**
-     * Checks if the weighting function and the selection levels parameters have valid values.
+     * Checks if the parameters have valid values. The experiment stops on an assertion, as for its other invalid
+     * inputs, while the in-memory ranking reports the invalid parameter to the caller, even if the assertions are
+     * disabled.
      */
     private void assertParameters() {
-        assert weightingFunction.equals("proximity-x") || weightingFunction.equals("proximity-xy") ||
-                weightingFunction.equals("surrounding-x") || weightingFunction.equals("surrounding-xy") ||
-                weightingFunction.equals("remoteness-x") || weightingFunction.equals("remoteness-xy") ||
-                weightingFunction.equals("nonlinearity") : "invalid weighting function.";
+        String error = findInvalidParameter();
+
+        if (quiet && error != null) throw new IllegalArgumentException("Invalid ranking parameter: " + error);
+        assert error == null : error;
+    }
+
+    /**
+     * Looks for a parameter with an invalid value.
+     * @return A description of the first invalid parameter found, or null if all of them are valid.
+     */
+    private String findInvalidParameter() {
+        if (!List.of("proximity-x", "proximity-xy", "surrounding-x", "surrounding-xy", "remoteness-x", "remoteness-xy",
+                "nonlinearity").contains(weightingFunction))
+            return "invalid weighting function: " + weightingFunction + ".";
 
         for (double selectionLevel : selectionLevels)
-            assert (selectionLevel >= 0) && (selectionLevel <= 100) : "invalid selection level.";
+            if (!(selectionLevel >= 0 && selectionLevel <= 100))
+                return "invalid selection level: " + selectionLevel + ".";
+
+        if (!(distMetric > 0) || Double.isInfinite(distMetric))
+            return "the distance metric should be a positive number.";
+
+        if (numNeighbors < 1) return "the number of neighbors should be at least 1.";
+
+        if (!List.of("cardinal", "ordinal").contains(combMethod))
+            return "invalid combination method: " + combMethod + ".";
+
+        if (numThreads < 1) return "the number of threads should be at least 1.";
+
+        if (!List.of("selections", "ranks").contains(outMode)) return "invalid output mode: " + outMode + ".";
+
+        if (!List.of("csv", "csv.gz", "binary").contains(outFormat)) return "invalid output format: " + outFormat + ".";
+
+        if (progressInterval < 0) return "the progress interval should not be negative.";
+
+        if (checkpointInterval < 0) return "the checkpoint interval should not be negative.";
+
+        if (resultCacheSize < 0) return "the size of the result cache should not be negative.";
+
+        if (distanceCacheSize < 0) return "the size of the distance cache should not be negative.";
+
+        if (!List.of("true", "false").contains(distanceSharing)) return "invalid value for the distance sharing.";
+
+        if (!List.of("true", "false").contains(truncatedElimination))
+            return "invalid value for the truncated elimination.";
+
+        if (speculatedEliminations < 1) return "the number of speculated eliminations should be at least 1.";
+
+        if (blockSize < 1) return "the size of the elimination blocks should be at least 1.";
+
+        if (!(blockTolerance >= 0)) return "the tolerance of the elimination blocks should not be negative.";
+
+        if (!List.of("true", "false").contains(blockAgreement)) return "invalid value for the block agreement.";
+
+        if (!List.of("true", "false").contains(duplicateCollapsing))
+            return "invalid value for the duplicate collapsing.";
+
+        if (!List.of("none", "random-projection", "pca").contains(reductionMethod))
+            return "invalid reduction method: " + reductionMethod + ".";
 
-        assert (combMethod.equals("cardinal") || combMethod.equals("ordinal")) : "invalid combination method.";
+        if (reductionDimensions < 1) return "the number of dimensions after the reduction should be at least 1.";
+
+        if (!List.of("none", "morton", "hilbert").contains(reorderingCurve))
+            return "invalid reordering curve: " + reorderingCurve + ".";
+
+        if (!List.of("auto", "matrix", "pruned").contains(neighborSearch))
+            return "invalid neighbor search: " + neighborSearch + ".";
+
+        if (neighborSearch.equals("pruned") && !(distMetric >= 1 && distanceCachePath.isEmpty() &&
+                distanceSharing.equals("false") && duplicateCollapsing.equals("false")))
+            return "the pruned neighbor search requires a distance metric of at least 1, and does not use the " +
+                    "distance cache, the distance sharing or the duplicate collapsing.";
+
+        if (numPivots < 1) return "the number of pivots should be at least 1.";
+
+        return null;
     }
 
     /**
@@ -240,6 +480,27 @@ public class ParametersManager {
         }
     }
 
+    /**
+     * Loads an optional integer parameter from the parameter file.
+     * @param key The name of the parameter.
+     * @param defaultValue Value assumed if the parameter is not present in any of the parameter files.
+     * @return The parameter loaded from the parameter file, or the default value.
+     * @throws MissingOptionException Not thrown in practice, since the parameter is optional.
+     * @throws NumberFormatException If the loaded value is actually a string.
+     */
+    private int getIntegerParameter(ParameterList key, int defaultValue) throws MissingOptionException,
+            NumberFormatException {
+        boolean keyPresent = loadedParameters.containsKey(key.name) &&
+                !loadedParameters.getProperty(key.name).trim().isEmpty();
+
+        if (keyPresent) return getIntegerParameter(key);
+
+        // stores the value in the log file
+        loadedParametersLog.append(key.name).append(" = ").append(defaultValue).append("\n");
+
+        return defaultValue;
+    }
+
     /**
      * Loads a double parameter from the parameter file.
      * @param key The name of the parameter.
@@ -266,6 +527,27 @@ public class ParametersManager {
         }
     }
 
+    /**
+     * Loads an optional double parameter from the parameter file.
+     * @param key The name of the parameter.
+     * @param defaultValue Value assumed if the parameter is not present in any of the parameter files.
+     * @return The parameter loaded from the parameter file, or the default value.
+     * @throws MissingOptionException Not thrown in practice, since the parameter is optional.
+     * @throws NumberFormatException If the loaded value is actually a string.
+     */
+    private double getDoubleParameter(ParameterList key, double defaultValue) throws MissingOptionException,
+            NumberFormatException {
+        boolean keyPresent = loadedParameters.containsKey(key.name) &&
+                !loadedParameters.getProperty(key.name).trim().isEmpty();
+
+        if (keyPresent) return getDoubleParameter(key);
+
+        // stores the value in the log file
+        loadedParametersLog.append(key.name).append(" = ").append(defaultValue).append("\n");
+
+        return defaultValue;
+    }
+
     /**
      * Loads a double array parameter from the parameter file.
      * @param key The name of the parameter.
@@ -329,6 +611,25 @@ public class ParametersManager {
         return parameterValue;
     }
 
+    /**
+     * Loads an optional string parameter from the parameter file.
+     * @param key The name of the parameter.
+     * @param defaultValue Value assumed if the parameter is not present in any of the parameter files.
+     * @return The parameter loaded from the parameter file, or the default value.
+     * @throws MissingOptionException Not thrown in practice, since the parameter is optional.
+     */
+    private String getStringParameter(ParameterList key, String defaultValue) throws MissingOptionException {
+        boolean keyPresent = loadedParameters.containsKey(key.name) &&
+                !loadedParameters.getProperty(key.name).trim().isEmpty();
+
+        if (keyPresent) return getStringParameter(key, false);
+
+        // stores the value in the log file
+        loadedParametersLog.append(key.name).append(" = ").append(defaultValue).append("\n");
+
+        return defaultValue;
+    }
+
     /**
      * Return a log with parameter values. Useful for keeping track of the parameters used in the experiment.
      * @return A structured string containing the name and description of all parameters.
@@ -369,7 +670,7 @@ public class ParametersManager {
      * Returns the path where the output files should be saved.
      * @return The output path.
      */
-    String getOutPath() {
+    public String getOutPath() {
         return outPath;
     }
 
@@ -377,7 +678,7 @@ public class ParametersManager {
      * Returns the name of the dataset used in the experiment.
      * @return The dataset name.
      */
-    String getDatasetName() {
+    public String getDatasetName() {
         return datasetName;
     }
 
@@ -424,4 +725,209 @@ public class ParametersManager {
     String getCombMethod() {
         return combMethod;
     }
+
+    /**
+     * Returns the number of worker threads used by the parallel stages of the weighting and selection processes. The
+     * results do not depend on this value.
+     * @return The number of threads.
+     */
+    int getNumThreads() {
+        return numThreads;
+    }
+
+    /**
+     * Returns which files are written for each fold: the instances kept in each selection level ("selections") or only
+     * the rank of each instance ("ranks").
+     * @return The output mode.
+     */
+    String getOutMode() {
+        return outMode;
+    }
+
+    /**
+     * Returns the format of the output files: plain CSV ("csv"), gzip-compressed CSV ("csv.gz") or little-endian binary
+     * values ("binary").
+     * @return The output format.
+     */
+    String getOutFormat() {
+        return outFormat;
+    }
+
+    /**
+     * Returns the interval between progress reports of the elimination loop.
+     * @return The interval, in seconds, or 0 if the reports are disabled.
+     */
+    double getProgressInterval() {
+        return progressInterval;
+    }
+
+    /**
+     * Returns the interval between checkpoints of the elimination loop.
+     * @return The interval, in seconds, or 0 if the checkpoints are disabled.
+     */
+    double getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * Returns the folder where the ranks of each fold are cached.
+     * @return The path to the folder, or an empty string if the cache is disabled.
+     */
+    String getResultCachePath() {
+        return resultCachePath;
+    }
+
+    /**
+     * Returns the maximum size of the result cache.
+     * @return The size, in megabytes.
+     */
+    int getResultCacheSize() {
+        return resultCacheSize;
+    }
+
+    /**
+     * Returns the folder where the distance matrix and the initial neighbors of each fold are cached.
+     * @return The path to the folder, or an empty string if the cache is disabled.
+     */
+    String getDistanceCachePath() {
+        return distanceCachePath;
+    }
+
+    /**
+     * Returns the maximum size of the distance cache.
+     * @return The size, in megabytes.
+     */
+    int getDistanceCacheSize() {
+        return distanceCacheSize;
+    }
+
+    /**
+     * Indicates if the distances between instances that appear in more than one training fold are measured only once.
+     * @return True if the distances are shared between folds.
+     */
+    public boolean getDistanceSharing() {
+        return distanceSharing.equals("true");
+    }
+
+    /**
+     * Indicates if the elimination loop stops at the largest selection level.
+     * @return True if the elimination is truncated.
+     */
+    boolean getTruncatedElimination() {
+        return truncatedElimination.equals("true");
+    }
+
+    /**
+     * Returns the number of eliminations speculated at once by the elimination loop.
+     * @return The number of speculated eliminations (1 if the speculation is disabled).
+     */
+    int getSpeculatedEliminations() {
+        return speculatedEliminations;
+    }
+
+    /**
+     * Returns the maximum number of instances eliminated in a single step of the elimination loop.
+     * @return The size of the elimination blocks (1 for the exact elimination).
+     */
+    int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Returns the relative tolerance of the weights of the instances eliminated together.
+     * @return The tolerance, as a fraction of the smallest weight.
+     */
+    double getBlockTolerance() {
+        return blockTolerance;
+    }
+
+    /**
+     * Indicates if the ranks of the block elimination are compared with those of the exact elimination.
+     * @return True if the exact elimination is also run.
+     */
+    boolean getBlockAgreement() {
+        return blockAgreement.equals("true");
+    }
+
+    /**
+     * Indicates if the distances and the initial neighbors are computed once for instances with identical inputs.
+     * @return True if duplicate inputs are collapsed.
+     */
+    boolean getDuplicateCollapsing() {
+        return duplicateCollapsing.equals("true");
+    }
+
+    /**
+     * Returns the method used to reduce the number of input attributes.
+     * @return "none", "random-projection" or "pca".
+     */
+    String getReductionMethod() {
+        return reductionMethod;
+    }
+
+    /**
+     * Returns the number of input attributes after the reduction.
+     * @return The number of dimensions.
+     */
+    int getReductionDimensions() {
+        return reductionDimensions;
+    }
+
+    /**
+     * Returns the seed of the random projection.
+     * @return The seed.
+     */
+    int getReductionSeed() {
+        return reductionSeed;
+    }
+
+    /**
+     * Returns the space-filling curve along which the instances are sorted.
+     * @return "none", "morton" or "hilbert".
+     */
+    String getReorderingCurve() {
+        return reorderingCurve;
+    }
+
+    /**
+     * Returns how the nearest neighbors are searched.
+     * @return "auto", "matrix" or "pruned".
+     */
+    String getNeighborSearch() {
+        return neighborSearch;
+    }
+
+    /**
+     * Replaces the automatic choice of the neighbor search by the one made by {@link EnginePlan}.
+     * @param neighborSearch "matrix" or "pruned".
+     */
+    void setNeighborSearch(String neighborSearch) {
+        assert neighborSearch.equals("matrix") || neighborSearch.equals("pruned") : "invalid neighbor search.";
+
+        this.neighborSearch = neighborSearch;
+    }
+
+    /**
+     * Indicates if the neighbors are searched without the distance matrix (see {@link PrunedNeighborSearch}).
+     * @return True if the pruned neighbor search is used.
+     */
+    boolean getPrunedNeighborSearch() {
+        return neighborSearch.equals("pruned");
+    }
+
+    /**
+     * Returns the number of pivot instances of the pruned neighbor search.
+     * @return The number of pivots.
+     */
+    int getNumPivots() {
+        return numPivots;
+    }
+
+    /**
+     * Indicates if the messages about the processing of the folds should be omitted.
+     * @return True if the ranking is run in memory (see {@link #setRankingParameters(Properties)}).
+     */
+    boolean isQuiet() {
+        return quiet;
+    }
 }
@@ -0,0 +1,115 @@
+package edu.isr.data;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Java Flight Recorder events emitted while processing a fold. Each event carries the fold and the configuration being
+ * used, so hotspots can be related to specific folds and parameters in JDK Mission Control. When no recording is active,
+ * the events are disabled and cost almost nothing.
+ */
+final class ProfilingEvents {
+    private ProfilingEvents() {
+    }
+
+    /**
+     * Fields shared by all events.
+     */
+    @Category("ISR")
+    abstract static class FoldEvent extends Event {
+        @Label("Fold")
+        int foldId;
+
+        @Label("Instances")
+        int numInst;
+
+        @Label("Neighbors")
+        int numNeighbors;
+
+        @Label("Weighting Function")
+        String weightingFunction;
+
+        @Label("Distance Metric")
+        double distMetric;
+
+        /**
+         * Sets the fields that describe the fold and the configuration.
+         * @param fold The fold being processed.
+         * @param params Experiment parameters.
+         */
+        void set(Fold fold, ParametersManager params) {
+            foldId = fold.getFoldId();
+            numInst = fold.getNumInst();
+            numNeighbors = params.getNumNeighbors();
+            weightingFunction = params.getWeightingFunction();
+            distMetric = params.getDistMetric();
+        }
+
+        /**
+         * Ends the event and, if it is enabled, fills its fields and commits it.
+         * @param fold The fold being processed.
+         * @param params Experiment parameters.
+         */
+        void finish(Fold fold, ParametersManager params) {
+            end();
+
+            if (shouldCommit()) {
+                set(fold, params);
+                commit();
+            }
+        }
+    }
+
+    @Name("edu.isr.FoldLoad")
+    @Label("Fold Load")
+    @Description("Reading of a fold file")
+    static final class FoldLoad extends FoldEvent {
+        @Label("Fold Type")
+        String foldType;
+    }
+
+    @Name("edu.isr.DistanceMatrix")
+    @Label("Distance Matrix Build")
+    @Description("Measurement of the distances between each pair of instances")
+    static final class DistanceMatrix extends FoldEvent {
+    }
+
+    @Name("edu.isr.NeighborGraph")
+    @Label("Neighbor Graph Build")
+    @Description("Search for the initial nearest neighbors of all instances")
+    static final class NeighborGraph extends FoldEvent {
+    }
+
+    @Name("edu.isr.Weighting")
+    @Label("Weighting Pass")
+    @Description("Assignment of the initial weights to all instances")
+    static final class Weighting extends FoldEvent {
+    }
+
+    @Name("edu.isr.EliminationBatch")
+    @Label("Elimination Batch")
+    @Description("Consecutive steps of the elimination loop")
+    static final class EliminationBatch extends FoldEvent {
+        @Label("First Rank")
+        int firstRank;
+
+        @Label("Last Rank")
+        int lastRank;
+    }
+
+    @Name("edu.isr.OutputWrite")
+    @Label("Output Write")
+    @Description("Writing of the weights, ranks or selected instances of a fold")
+    static final class OutputWrite extends FoldEvent {
+        @Label("Output Type")
+        String outType;
+
+        @Label("Bytes Written")
+        @DataAmount
+        long bytesWritten;
+    }
+}
@@ -0,0 +1,105 @@
+package edu.isr.data;
+
+import java.util.Locale;
+
+/**
+ * Reports the progress of the elimination loop at regular intervals: percentage of instances ranked, throughput and
+ * estimated remaining time. The cost of an elimination step changes as the fold shrinks, so the estimate is based on a
+ * model of the time per step as a linear function of the number of instances still unranked, fitted by least squares to
+ * the measurements of all intervals so far.
+ */
+class ProgressReporter {
+    private final int foldId;
+    private final int numSteps;
+    private final long intervalNanos;
+    private final long startTime;
+
+    private long lastReportTime;
+    private int lastReportSteps;
+    private int stepsDone;
+
+    // sums used by the least-squares fit of the time per step (t) as a function of the number of unranked instances (r)
+    private double sumWeights, sumR, sumT, sumRR, sumRT;
+
+    /**
+     * Creates a reporter for the elimination loop of a fold.
+     * @param foldId The fold identifier.
+     * @param numSteps Total number of steps of the loop.
+     * @param stepsDone Number of steps already done, when the loop is resumed from a checkpoint.
+     * @param intervalSeconds Interval between reports, in seconds. Values smaller than or equal to 0 disable them.
+     */
+    ProgressReporter(int foldId, int numSteps, int stepsDone, double intervalSeconds) {
+        this.foldId = foldId;
+        this.numSteps = numSteps;
+        this.stepsDone = stepsDone;
+        this.lastReportSteps = stepsDone;
+        this.intervalNanos = intervalSeconds > 0 ? (long) (intervalSeconds * 1e9) : Long.MAX_VALUE;
+        this.startTime = System.nanoTime();
+        this.lastReportTime = startTime;
+    }
+
+    /**
+     * Registers the end of a step and prints a report if the interval has elapsed. When the reports are disabled, this
+     * method only increments a counter.
+     */
+    void step() {
+        stepsDone++;
+
+        if (intervalNanos == Long.MAX_VALUE) return;
+
+        long now = System.nanoTime();
+        if (now - lastReportTime < intervalNanos) return;
+
+        int intervalSteps = stepsDone - lastReportSteps;
+        double nanosPerStep = (double) (now - lastReportTime) / intervalSteps;
+        double meanUnranked = numSteps - (lastReportSteps + stepsDone) / 2.0;
+
+        // each interval is weighted by its number of steps
+        sumWeights += intervalSteps;
+        sumR += intervalSteps * meanUnranked;
+        sumT += intervalSteps * nanosPerStep;
+        sumRR += intervalSteps * meanUnranked * meanUnranked;
+        sumRT += intervalSteps * meanUnranked * nanosPerStep;
+
+        double elapsedSeconds = (now - startTime) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "  Fold %d: %d of %d instances ranked (%.1f%%), " +
+                        "%.1f eliminations/s, elapsed %s, ETA %s", foldId, stepsDone, numSteps,
+                100.0 * stepsDone / numSteps, intervalSteps / ((now - lastReportTime) / 1e9),
+                formatDuration(elapsedSeconds), formatDuration(estimateRemainingNanos(nanosPerStep) / 1e9)));
+
+        lastReportTime = now;
+        lastReportSteps = stepsDone;
+    }
+
+    /**
+     * Estimates the time needed to finish the loop, adding up the predicted time of each remaining step.
+     * @param lastNanosPerStep Time per step measured in the last interval, used while the model cannot be fitted.
+     * @return The estimated remaining time, in nanoseconds.
+     */
+    private double estimateRemainingNanos(double lastNanosPerStep) {
+        double numUnranked = numSteps - stepsDone;
+
+        double intercept = lastNanosPerStep;
+        double slope = 0;
+
+        double den = sumWeights * sumRR - sumR * sumR;
+        if (den > 0) {
+            double fittedSlope = (sumWeights * sumRT - sumR * sumT) / den;
+            double fittedIntercept = (sumT - fittedSlope * sumR) / sumWeights;
+
+            // a model predicting negative times or steps getting more expensive as the fold shrinks is not trusted
+            if (fittedSlope >= 0 && fittedIntercept >= 0) {
+                intercept = fittedIntercept;
+                slope = fittedSlope;
+            }
+        }
+
+        // sum of (intercept + slope * r) for r = 1 .. numUnranked
+        return intercept * numUnranked + slope * numUnranked * (numUnranked + 1) / 2;
+    }
+
+    private static String formatDuration(double seconds) {
+        long total = Math.round(seconds);
+        return String.format(Locale.ROOT, "%d:%02d:%02d", total / 3600, (total / 60) % 60, total % 60);
+    }
+}
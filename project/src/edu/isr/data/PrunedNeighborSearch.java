@@ -0,0 +1,247 @@
+package edu.isr.data;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Searches for the nearest neighbors of an instance without a distance matrix, measuring the distances to the candidates
+ * on demand. Two techniques avoid most of the work:
+ *
+ * - The distances from each instance to a few pivot instances are measured once. By the triangle inequality, the
+ *   distance between two instances is at least the difference between their distances to any pivot, so a candidate
+ *   whose lower bound is larger than the distance to the current k-th neighbor is skipped without being measured. The
+ *   candidates are visited in increasing order of their lower bounds, so the search stops at the first one skipped.
+ * - The sum of the Minkowski distance is accumulated one dimension at a time, and abandoned as soon as it is larger than
+ *   the sum of the current k-th neighbor.
+ *
+ * Both techniques rely on the distance being a metric, so the differences between the attributes are taken in absolute
+ * value, which is the Minkowski distance for any {@code distMetric} >= 1. For even integer metrics, the distances are
+ * exactly the ones of the distance matrix, and so are the neighbors: ties are broken by the id of the instances in the
+ * fold file, and the ranked instances are only taken as neighbors if there are not enough other instances, in the
+ * order of these ids.
+ */
+class PrunedNeighborSearch {
+    /* Relative margin of the comparisons with the k-th neighbor, larger than the rounding errors of the lower bounds and
+    of the partial sums, so that a candidate is never skipped when its distance is equal to the one of the k-th
+    neighbor. */
+    private static final double MARGIN = 1e-9;
+
+    private final double[][] inputs; // the input attributes of each instance, shared with the fold
+    private final double distMetric;
+    private final int[] pivotIds;
+    private final double[][] distToPivots; // distances from each instance to each pivot
+    private final boolean[] ranked; // instances disregarded by the searches, as by Fold.updateDistMatrix
+    private final int[] originalIds; // id of each instance in the fold file, which breaks the ties
+    private final int[] originalOrder; // the instances, in the order of the fold file
+
+    private PrunedNeighborSearch(double[][] inputs, double distMetric, int[] pivotIds, double[][] distToPivots,
+                                 boolean[] ranked, int[] originalIds, int[] originalOrder) {
+        this.inputs = inputs;
+        this.distMetric = distMetric;
+        this.pivotIds = pivotIds;
+        this.distToPivots = distToPivots;
+        this.ranked = ranked;
+        this.originalIds = originalIds;
+        this.originalOrder = originalOrder;
+    }
+
+    /**
+     * Chooses the pivots of a fold and measures the distances from every instance to them. The first pivot is the first
+     * instance, and each of the following ones is the instance farthest from the pivots already chosen, so that the
+     * pivots are spread over the input space.
+     * @param fold The fold.
+     * @param distMetric Parameter of the Minkowski metric, at least 1.
+     * @param numPivots Number of pivots, limited by the number of instances.
+     * @param numThreads Number of worker threads.
+     * @return The search structure.
+     */
+    static PrunedNeighborSearch build(Fold fold, double distMetric, int numPivots, int numThreads) {
+        assert distMetric >= 1 : "the pruned neighbor search requires a distance metric of at least 1.";
+
+        int numInst = fold.getNumInst();
+        double[][] inputs = new double[numInst][];
+        int[] originalIds = new int[numInst];
+        for (int i = 0; i < numInst; i++) {
+            inputs[i] = fold.getInst(i).getInput();
+            originalIds[i] = fold.getOriginalId(i);
+        }
+
+        numPivots = Math.min(numPivots, numInst);
+        int[] pivotIds = new int[numPivots];
+        double[][] distToPivots = new double[numInst][numPivots];
+        double[] distToClosestPivot = new double[numInst];
+        Arrays.fill(distToClosestPivot, Double.POSITIVE_INFINITY);
+
+        for (int p = 0; p < numPivots; p++) {
+            int pivotId = 0;
+            if (p > 0) {
+                for (int i = 1; i < numInst; i++)
+                    if (distToClosestPivot[i] > distToClosestPivot[pivotId]) pivotId = i;
+            }
+
+            pivotIds[p] = pivotId;
+            int pivot = p;
+            double[] u = inputs[pivotId];
+
+            // each task measures the distance from one instance to the new pivot
+            Utils.parallelFor(numInst, numThreads, i -> {
+                distToPivots[i][pivot] = measureDist(inputs[i], u, distMetric, Double.POSITIVE_INFINITY, new int[1]);
+                distToClosestPivot[i] = Math.min(distToClosestPivot[i], distToPivots[i][pivot]);
+            });
+        }
+
+        return new PrunedNeighborSearch(inputs, distMetric, pivotIds, distToPivots, new boolean[numInst], originalIds,
+                fold.getOriginalOrder());
+    }
+
+    /**
+     * Copies the search structure, so that the copy can rank the instances independently.
+     * @return The copy, which shares the inputs and the pivot distances, but not the ranked instances.
+     */
+    PrunedNeighborSearch copy() {
+        return new PrunedNeighborSearch(inputs, distMetric, pivotIds, distToPivots, ranked.clone(), originalIds,
+                originalOrder);
+    }
+
+    /**
+     * Disregards an instance in the following searches, as {@link Fold#updateDistMatrix(int)} does.
+     * @param instId The id of the ranked instance.
+     */
+    void setRanked(int instId) {
+        ranked[instId] = true;
+    }
+
+    /**
+     * Gets the number of pivots.
+     * @return The number of pivots.
+     */
+    int getNumPivots() {
+        return pivotIds.length;
+    }
+
+    /**
+     * Searches for the nearest neighbors of an instance, as {@link Fold#searchNeighbors(int, int, int[], Metrics)} does
+     * with the distance matrix. It does not modify the structure, so it can be called concurrently.
+     * @param instId Index of the instance for which we want to find the neighbors.
+     * @param numNeighbors Number of instances taken as neighbors.
+     * @param excludedIds Ids of other instances considered ranked.
+     * @param metrics Metrics where the pruned and abandoned candidates are counted.
+     * @return The ids of the neighbors, from the nearest to the farthest.
+     */
+    int[] search(int instId, int numNeighbors, int[] excludedIds, Metrics metrics) {
+        int numInst = inputs.length;
+
+        boolean[] disregarded = ranked;
+        if (excludedIds.length > 0) {
+            disregarded = ranked.clone();
+            for (int excludedId : excludedIds)
+                disregarded[excludedId] = true;
+        }
+
+        // lower bounds of the distances to the candidates, given by the pivots
+        double[] lowerBounds = new double[numInst];
+        double[] u = distToPivots[instId];
+
+        Integer[] candidates = new Integer[numInst];
+        int numCandidates = 0;
+
+        for (int j = 0; j < numInst; j++) {
+            if (j == instId || disregarded[j]) continue;
+
+            double[] v = distToPivots[j];
+            double lowerBound = 0;
+            for (int p = 0; p < u.length; p++)
+                lowerBound = Math.max(lowerBound, Math.abs(u[p] - v[p]) - MARGIN * (u[p] + v[p]));
+
+            lowerBounds[j] = lowerBound;
+            candidates[numCandidates++] = j;
+        }
+
+        Arrays.sort(candidates, 0, numCandidates, Comparator.comparingDouble(j -> lowerBounds[j]));
+
+        // the current nearest instances, from the nearest to the farthest (ties by id in the fold file)
+        int[] nearestIds = new int[numNeighbors];
+        double[] nearestDist = new double[numNeighbors];
+        int numNearest = 0;
+
+        int numMeasured = 0;
+        int numAbandoned = 0;
+        long numDimensions = 0;
+        int[] numSummed = new int[1];
+
+        for (int c = 0; c < numCandidates; c++) {
+            int j = candidates[c];
+            double maxDist = numNearest < numNeighbors ? Double.POSITIVE_INFINITY : nearestDist[numNeighbors - 1];
+
+            // the candidates that follow have even larger lower bounds
+            if (lowerBounds[j] > maxDist) break;
+
+            numMeasured++;
+            double dist = measureDist(inputs[instId], inputs[j], distMetric, maxDist, numSummed);
+            numDimensions += numSummed[0];
+
+            if (Double.isNaN(dist)) {
+                numAbandoned++;
+                continue;
+            }
+
+            // finds the position of the candidate among the nearest instances
+            int position = numNearest;
+            while (position > 0 && (nearestDist[position - 1] > dist ||
+                    (nearestDist[position - 1] == dist && originalIds[nearestIds[position - 1]] > originalIds[j])))
+                position--;
+
+            if (position >= numNeighbors) continue;
+
+            int numMoved = Math.min(numNearest, numNeighbors - 1) - position;
+            System.arraycopy(nearestIds, position, nearestIds, position + 1, numMoved);
+            System.arraycopy(nearestDist, position, nearestDist, position + 1, numMoved);
+            nearestIds[position] = j;
+            nearestDist[position] = dist;
+            numNearest = Math.min(numNearest + 1, numNeighbors);
+        }
+
+        metrics.increment(Metrics.Counter.NEIGHBOR_SEARCHES);
+        metrics.add(Metrics.Counter.PRUNED_CANDIDATES, numCandidates - numMeasured);
+        metrics.add(Metrics.Counter.ABANDONED_DISTANCES, numAbandoned);
+        metrics.add(Metrics.Counter.DIMENSIONS_SUMMED, numDimensions);
+
+        // as in the distance matrix, the ranked instances are at an infinite distance, after all the other ones
+        for (int o = 0; o < numInst && numNearest < numNeighbors; o++) {
+            int j = originalOrder[o];
+            if (j != instId && disregarded[j]) nearestIds[numNearest++] = j;
+        }
+
+        assert numNearest == numNeighbors : "the fold does not have enough instances.";
+
+        return nearestIds;
+    }
+
+    /**
+     * Measures the distance between two instances, abandoning the sum once the distance is known to be larger than a
+     * limit.
+     * @param u The input attributes of the first instance.
+     * @param v The input attributes of the second instance.
+     * @param distMetric Parameter of the Minkowski metric.
+     * @param maxDist The limit.
+     * @param numSummed Receives, in its first position, the number of dimensions summed.
+     * @return The distance, or NaN if the sum was abandoned.
+     */
+    private static double measureDist(double[] u, double[] v, double distMetric, double maxDist, int[] numSummed) {
+        double maxSum = Math.pow(maxDist, distMetric) * (1 + MARGIN);
+        double sum = 0;
+
+        for (int c = 0; c < u.length; c++) {
+            // Math.pow gives the same result for a value and its opposite when the exponent is an even integer
+            sum += Math.pow(Math.abs(u[c] - v[c]), distMetric);
+
+            if (sum > maxSum) {
+                numSummed[0] = c + 1;
+                return Double.NaN;
+            }
+        }
+
+        numSummed[0] = u.length;
+        return Math.pow(sum, 1 / distMetric);
+    }
+}
@@ -0,0 +1,73 @@
+package edu.isr.data;
+
+import org.apache.commons.math3.stat.correlation.SpearmansCorrelation;
+
+/**
+ * Agreement between the ranks of an approximate elimination and those of the exact elimination of the same fold.
+ */
+class RankAgreement {
+    private final double rankCorrelation; // Spearman's correlation between both rankings
+    private final double[] keptAgreement; // for each selection level, fraction of the kept instances also kept exactly
+
+    /**
+     * Compares two rankings of the same fold.
+     * @param exactRanks The ranks of the exact elimination.
+     * @param ranks The ranks of the approximate elimination.
+     * @param numInstKept Number of instances kept in each selection level.
+     */
+    RankAgreement(int[] exactRanks, int[] ranks, int[] numInstKept) {
+        double[] x = new double[ranks.length];
+        double[] y = new double[ranks.length];
+        for (int i = 0; i < ranks.length; i++) {
+            x[i] = exactRanks[i];
+            y[i] = ranks[i];
+        }
+
+        rankCorrelation = ranks.length > 1 ? new SpearmansCorrelation().correlation(x, y) : 1;
+
+        keptAgreement = new double[numInstKept.length];
+        for (int l = 0; l < numInstKept.length; l++) {
+            int numKeptByBoth = 0;
+            for (int i = 0; i < ranks.length; i++)
+                if (exactRanks[i] <= numInstKept[l] && ranks[i] <= numInstKept[l]) numKeptByBoth++;
+
+            keptAgreement[l] = numInstKept[l] > 0 ? (double) numKeptByBoth / numInstKept[l] : 1;
+        }
+    }
+
+    /**
+     * Gets Spearman's correlation between both rankings.
+     * @return The correlation, which is 1 if the rankings are the same.
+     */
+    double getRankCorrelation() {
+        return rankCorrelation;
+    }
+
+    /**
+     * Returns the header of the agreement file, with the names of the columns written by {@link #toCsvRow(int)}.
+     * @param selectionLevels The selection levels, in the same order as the ones given to the constructor.
+     * @return The header, without line separator.
+     */
+    static String getCsvHeader(double[] selectionLevels) {
+        StringBuilder header = new StringBuilder("fold,rank_correlation");
+
+        for (double selectionLevel : selectionLevels)
+            header.append(",kept_agreement_s").append(selectionLevel);
+
+        return header.toString();
+    }
+
+    /**
+     * Formats the agreement as a line of the agreement file.
+     * @param foldId The fold identifier.
+     * @return The line, without line separator.
+     */
+    String toCsvRow(int foldId) {
+        StringBuilder row = new StringBuilder().append(foldId).append(',').append(rankCorrelation);
+
+        for (double agreement : keptAgreement)
+            row.append(',').append(agreement);
+
+        return row.toString();
+    }
+}
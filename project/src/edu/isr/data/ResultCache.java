@@ -0,0 +1,179 @@
+package edu.isr.data;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Cache of the results of the ranking process, shared by all experiments that use the same cache folder. Each entry
+ * holds the initial weights and the final ranks of a fold and is identified by the content of the fold together with
+ * the parameters that affect the ranking (weighting function, distance metric, number of neighbors and combination
+ * method). The selection levels, the output mode and the output format are not part of the key, so a cached fold can be
+ * written in any of them.
+ *
+ * Entries are written in temporary files which are then atomically renamed, so concurrent experiments never read a
+ * partial entry. The total size of the cache is bounded, with the least recently used entries evicted first.
+ */
+public class ResultCache {
+    private static final int MAGIC = 0x49535252; // "ISRR"
+    private static final int VERSION = 1;
+    private static final String EXTENSION = ".result";
+
+    private final Path folder;
+    private final long maxBytes;
+
+    private ResultCache(Path folder, long maxBytes) {
+        this.folder = folder;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Opens the result cache, if it is enabled.
+     * @param params Experiment parameters.
+     * @return The cache, or null if the "result.cache.path" parameter is empty.
+     * @throws IOException If the cache folder could not be created.
+     */
+    public static ResultCache open(ParametersManager params) throws IOException {
+        if (params.getResultCachePath().isEmpty()) return null;
+
+        Path folder = Paths.get(params.getResultCachePath());
+        try {
+            Files.createDirectories(folder);
+        } catch (IOException e) {
+            throw new IOException("Error while creating the folder of the result cache.");
+        }
+
+        return new ResultCache(folder, (long) params.getResultCacheSize() << 20);
+    }
+
+    /**
+     * Looks for the cached result of a fold. When it is found, the weights are written and the ranks are assigned to the
+     * instances exactly as {@link InstanceSelection#selectInstances} would do, so only the selection remains to be
+     * applied.
+     * @param fold Set of instances to be weighted.
+     * @param expId Identifier based on the names of the weighting function, neighborhood size, and the distance metric.
+     * @param params Experiment parameters.
+     * @return True if the result was found in the cache.
+     * @throws IOException If some error occurs while writing the file containing the weights.
+     */
+    public boolean restore(Fold fold, String expId, ParametersManager params) throws IOException {
+        Path file = folder.resolve(getKey(fold, params) + EXTENSION);
+
+        double[] weights = new double[fold.getNumInst()];
+        int[] ranks = new int[fold.getNumInst()];
+
+        if (!read(file, weights, ranks)) return false;
+
+        System.out.println("  Ranks found in the result cache.");
+        Utils.touch(file);
+
+        OutputHandler.writeWeights(weights, expId, params, fold);
+        for (int i = 0; i < ranks.length; i++)
+            fold.getInst(i).setRank(ranks[i]);
+
+        return true;
+    }
+
+    /**
+     * Adds the result of a fold to the cache, evicting the least recently used results if the cache gets too large. The
+     * result is not cached if the elimination was truncated, since the ranks would only be valid for the same selection
+     * levels.
+     * @param fold A fold whose instances were ranked.
+     * @param weights The initial weights of the instances.
+     * @param params Experiment parameters.
+     * @throws IOException If some error occurs while writing the cache entry.
+     */
+    public void store(Fold fold, double[] weights, ParametersManager params) throws IOException {
+        if (InstanceSelection.getKeptRank(fold.getNumInst(), params) > 0) return;
+
+        write(folder.resolve(getKey(fold, params) + EXTENSION), weights, fold.getRanks());
+
+        try {
+            Utils.evictLeastRecentlyUsed(folder, EXTENSION, maxBytes);
+        } catch (IOException e) {
+            throw new IOException("Error while evicting entries of the result cache.");
+        }
+    }
+
+    /**
+     * Builds the key of the cache entry of a fold.
+     * @param fold The fold.
+     * @param params Experiment parameters.
+     * @return The key, which is also the name of the cache file.
+     */
+    private static String getKey(Fold fold, ParametersManager params) {
+        String key = fold.getContentHash() + "-" + params.getWeightingFunction() + "-L" + params.getDistMetric() +
+                "-k" + params.getNumNeighbors() + "-" + params.getCombMethod();
+
+        // the approximate elimination gives different ranks for each block size and tolerance
+        if (params.getBlockSize() > 1) key += "-b" + params.getBlockSize() + "-" + params.getBlockTolerance();
+
+        // the pruned search measures different distances from the matrix for the other metrics
+        if (params.getPrunedNeighborSearch() && !Utils.isSymmetricMetric(params.getDistMetric())) key += "-pruned";
+
+        return key;
+    }
+
+    /**
+     * Reads a cache entry.
+     * @param file The cache file.
+     * @param weights Array where the initial weights are copied.
+     * @param ranks Array where the final ranks are copied.
+     * @return True if the entry was found and is valid.
+     */
+    private static boolean read(Path file, double[] weights, int[] ranks) {
+        if (!Files.isRegularFile(file)) return false;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != weights.length) return false;
+
+            for (int i = 0; i < weights.length; i++)
+                weights[i] = in.readDouble();
+
+            for (int i = 0; i < ranks.length; i++)
+                ranks[i] = in.readInt();
+
+            return true;
+        } catch (IOException e) {
+            // evicted by another process or unreadable, so the fold is ranked again
+            return false;
+        }
+    }
+
+    /**
+     * Writes a cache entry in a temporary file, which then atomically replaces the entry (if any).
+     * @param file The cache file.
+     * @param weights The initial weights of the instances.
+     * @param ranks The final ranks of the instances.
+     * @throws IOException If the entry could not be written.
+     */
+    private static void write(Path file, double[] weights, int[] ranks) throws IOException {
+        Path tempFile = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile),
+                    1 << 16))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(weights.length);
+
+                for (double weight : weights)
+                    out.writeDouble(weight);
+
+                for (int rank : ranks)
+                    out.writeInt(rank);
+            }
+
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Files.deleteIfExists(tempFile);
+            throw new IOException("Error while writing the result cache entry: " + file + ".");
+        }
+    }
+}
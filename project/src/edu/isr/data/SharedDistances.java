@@ -0,0 +1,137 @@
+package edu.isr.data;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Distances between the instances of all training folds of a dataset, measured once. In k-fold cross-validation each
+ * instance belongs to k - 1 training folds, so measuring the distances of each fold separately repeats most of the
+ * work. Here the instances of all folds are identified by the values of their input attributes, the distances between
+ * the distinct ones are measured once, and the distance matrix of each fold is then filled through a map from its
+ * instances to the distinct ones.
+ *
+ * The distances are only shared when the distance metric is symmetric (see {@link Utils#isSymmetricMetric(double)}),
+ * so each fold gets exactly the values it would measure itself.
+ */
+public class SharedDistances {
+    private final double[][] distances; // lower triangle: distances[a][b], for b < a, between distinct instances a and b
+    private final Map<Fold, int[]> distinctIds; // for each fold, the distinct instance of each of its instances
+
+    private SharedDistances(double[][] distances, Map<Fold, int[]> distinctIds) {
+        this.distances = distances;
+        this.distinctIds = distinctIds;
+    }
+
+    /**
+     * Measures the distances between the distinct instances of a set of folds, if the distance metric allows it.
+     * @param folds The training folds of a dataset.
+     * @param params Experiment parameters.
+     * @return The shared distances, or null if the distance metric is not an even integer.
+     */
+    public static SharedDistances measure(List<Fold> folds, ParametersManager params) {
+        double distMetric = params.getDistMetric();
+
+        if (!Utils.isSymmetricMetric(distMetric)) {
+            System.out.println("  Distances are not shared between folds: the distance metric is not an even " +
+                    "integer.");
+            return null;
+        }
+
+        Map<InputKey, Integer> keysToIds = new HashMap<>();
+        Map<Fold, int[]> distinctIds = new HashMap<>();
+        List<double[]> inputs = new ArrayList<>();
+
+        for (Fold fold : folds) {
+            int[] ids = new int[fold.getNumInst()];
+
+            for (int i = 0; i < ids.length; i++) {
+                double[] input = fold.getInst(i).getInput();
+
+                ids[i] = keysToIds.computeIfAbsent(new InputKey(input), key -> {
+                    inputs.add(input);
+                    return inputs.size() - 1;
+                });
+            }
+
+            distinctIds.put(fold, ids);
+        }
+
+        int numDistinct = inputs.size();
+        int numDimensions = folds.get(0).getNumAttr() - 1;
+        double[][] distances = new double[numDistinct][];
+
+        // each task measures one row of the lower triangle
+        Utils.parallelFor(numDistinct, params.getNumThreads(), a -> {
+            double[] u = inputs.get(a);
+            distances[a] = new double[a];
+
+            for (int b = 0; b < a; b++)
+                distances[a][b] = Utils.measureDist(u, inputs.get(b), numDimensions, distMetric);
+        });
+
+        long numFoldInst = 0;
+        for (Fold fold : folds)
+            numFoldInst += fold.getNumInst();
+
+        System.out.println("  Distances shared between folds: " + numDistinct + " distinct instances out of " +
+                numFoldInst + ".");
+
+        return new SharedDistances(distances, distinctIds);
+    }
+
+    /**
+     * Estimates the memory kept by the shared distances while the folds are ranked: the lower triangle of the distances
+     * between the distinct instances of all folds, which is about 4 U^2 bytes for U distinct instances, and the map of
+     * each fold to them.
+     * @param folds The training folds of a dataset.
+     * @param params Experiment parameters.
+     * @return The estimated memory, in bytes, or 0 if the distances are not shared.
+     */
+    static long estimateMemory(List<Fold> folds, ParametersManager params) {
+        if (!params.getDistanceSharing() || !Utils.isSymmetricMetric(params.getDistMetric())) return 0;
+
+        Set<InputKey> keys = new HashSet<>();
+        long numFoldInst = 0;
+
+        for (Fold fold : folds) {
+            for (int i = 0; i < fold.getNumInst(); i++)
+                keys.add(new InputKey(fold.getInst(i).getInput()));
+
+            numFoldInst += fold.getNumInst();
+        }
+
+        long numDistinct = keys.size();
+        long triangleBytes = Double.BYTES * numDistinct * (numDistinct - 1) / 2 + numDistinct * (16 + 8);
+
+        return triangleBytes + Integer.BYTES * numFoldInst;
+    }
+
+    /**
+     * Fills the distance matrix of a fold with the shared distances.
+     * @param fold One of the folds given to {@link #measure(List, ParametersManager)}.
+     */
+    public void assignDistances(Fold fold) {
+        int[] ids = distinctIds.get(fold);
+        assert ids != null : "the distances of the fold were not measured.";
+
+        int numInst = fold.getNumInst();
+        double[][] distBetweenInst = new double[numInst][numInst];
+
+        for (int i = 1; i < numInst; i++) {
+            for (int j = 0; j < i; j++) {
+                int a = Math.max(ids[i], ids[j]);
+                int b = Math.min(ids[i], ids[j]);
+
+                // instances with the same input attributes are the same distinct instance, at distance 0
+                distBetweenInst[i][j] = a == b ? 0 : distances[a][b];
+                distBetweenInst[j][i] = distBetweenInst[i][j];
+            }
+        }
+
+        fold.setDistBetweenInst(distBetweenInst);
+    }
+}
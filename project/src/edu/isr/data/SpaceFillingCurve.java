@@ -0,0 +1,148 @@
+package edu.isr.data;
+
+import java.util.Arrays;
+
+/**
+ * Sorts the instances of a fold along a space-filling curve of their inputs (Morton or Hilbert order), so that instances
+ * close to each other in the input space are also close in the fold. The rows of the distance matrix and the attributes
+ * of the neighbors of an instance are then mostly allocated next to each other, which improves the use of the processor
+ * caches. The fold keeps the original ids of the instances, and the weights, ranks and selections are written in the
+ * original order.
+ *
+ * Only the memory layout changes: ties between equal distances or weights are still broken by the original ids (see
+ * {@link Fold#getOriginalId(int)}), and the associates are linked in the original order, so the results are the same as
+ * without the reordering.
+ */
+public class SpaceFillingCurve {
+    private static final int BITS_PER_DIMENSION = 16; // resolution of the grid in which the inputs are placed
+
+    /**
+     * Reorders the instances of a fold according to the "reordering.curve" parameter.
+     * @param fold A fold whose distances were not measured yet.
+     * @param params Experiment parameters.
+     */
+    public static void reorder(Fold fold, ParametersManager params) {
+        String curve = params.getReorderingCurve();
+        if (curve.equals("none")) return;
+
+        long startTime = System.nanoTime();
+
+        int numInst = fold.getNumInst();
+        int numInputs = fold.getNumAttr() - 1;
+
+        double[] minValues = new double[numInputs];
+        double[] maxValues = new double[numInputs];
+        Arrays.fill(minValues, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxValues, Double.NEGATIVE_INFINITY);
+
+        for (int i = 0; i < numInst; i++) {
+            double[] input = fold.getInst(i).getInput();
+
+            for (int c = 0; c < numInputs; c++) {
+                minValues[c] = Math.min(minValues[c], input[c]);
+                maxValues[c] = Math.max(maxValues[c], input[c]);
+            }
+        }
+
+        long[][] keys = new long[numInst][];
+
+        // each task computes the position of one instance along the curve
+        Utils.parallelFor(numInst, params.getNumThreads(), i -> {
+            int[] coordinates = getGridCoordinates(fold.getInst(i).getInput(), minValues, maxValues);
+            if (curve.equals("hilbert")) transposeHilbertIndex(coordinates);
+
+            keys[i] = interleaveBits(coordinates);
+        });
+
+        // the sort is stable, so instances with the same position keep their relative order
+        Integer[] order = new Integer[numInst];
+        for (int i = 0; i < numInst; i++)
+            order[i] = i;
+
+        Arrays.sort(order, (a, b) -> Arrays.compareUnsigned(keys[a], keys[b]));
+
+        fold.reorder(Arrays.stream(order).mapToInt(Integer::intValue).toArray());
+        fold.getMetrics().addTime(Metrics.Phase.REORDERING, System.nanoTime() - startTime);
+
+        OutputHandler.printMessage("  Instances of fold " + fold.getFoldId() + " sorted along a " + curve +
+                " curve.", params);
+    }
+
+    /**
+     * Places an input in a regular grid spanning the range of each input attribute of the fold.
+     * @param input The input attributes of an instance.
+     * @param minValues The smallest value of each input attribute.
+     * @param maxValues The largest value of each input attribute.
+     * @return The integer coordinates of the input, with {@link #BITS_PER_DIMENSION} bits each.
+     */
+    private static int[] getGridCoordinates(double[] input, double[] minValues, double[] maxValues) {
+        int maxCoordinate = (1 << BITS_PER_DIMENSION) - 1;
+        int[] coordinates = new int[input.length];
+
+        for (int c = 0; c < input.length; c++) {
+            double range = maxValues[c] - minValues[c];
+            if (!(range > 0)) continue; // constant attribute
+
+            double position = (input[c] - minValues[c]) / range * maxCoordinate;
+            coordinates[c] = (int) Math.max(0, Math.min(maxCoordinate, position));
+        }
+
+        return coordinates;
+    }
+
+    /**
+     * Converts grid coordinates to the transposed form of their Hilbert index (J. Skilling, "Programming the Hilbert
+     * curve", 2004). Interleaving the bits of the transposed coordinates gives the position along the Hilbert curve.
+     * @param x The coordinates, which are replaced by the transposed index.
+     */
+    private static void transposeHilbertIndex(int[] x) {
+        int n = x.length;
+        int m = 1 << (BITS_PER_DIMENSION - 1);
+
+        // inverse undo
+        for (int q = m; q > 1; q >>= 1) {
+            int p = q - 1;
+
+            for (int i = 0; i < n; i++) {
+                if ((x[i] & q) != 0) {
+                    x[0] ^= p; // invert
+                } else {
+                    int t = (x[0] ^ x[i]) & p; // exchange
+                    x[0] ^= t;
+                    x[i] ^= t;
+                }
+            }
+        }
+
+        // Gray encode
+        for (int i = 1; i < n; i++)
+            x[i] ^= x[i - 1];
+
+        int t = 0;
+        for (int q = m; q > 1; q >>= 1)
+            if ((x[n - 1] & q) != 0) t ^= q - 1;
+
+        for (int i = 0; i < n; i++)
+            x[i] ^= t;
+    }
+
+    /**
+     * Interleaves the bits of a set of coordinates, from the most significant bit of each coordinate to the least
+     * significant one, which gives the position along the Morton (Z-order) curve.
+     * @param coordinates The coordinates, with {@link #BITS_PER_DIMENSION} bits each.
+     * @return The interleaved bits, to be compared as unsigned numbers, from the most significant word.
+     */
+    private static long[] interleaveBits(int[] coordinates) {
+        long[] key = new long[(coordinates.length * BITS_PER_DIMENSION + 63) / 64];
+        int position = 0;
+
+        for (int bit = BITS_PER_DIMENSION - 1; bit >= 0; bit--) {
+            for (int coordinate : coordinates) {
+                if (((coordinate >> bit) & 1) != 0) key[position / 64] |= 1L << (63 - position % 64);
+                position++;
+            }
+        }
+
+        return key;
+    }
+}
@@ -0,0 +1,108 @@
+package edu.isr.data;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Updates the associates of the eliminated instances using updates computed in advance, in parallel, for the next
+ * instances expected to be eliminated. The expected instances are the ones with the smallest weights, and the update of
+ * each one is computed as if the previous ones had already been eliminated. The updates are then applied in order, as
+ * long as the instance eliminated by the loop is the expected one and its associates did not change; otherwise, the
+ * remaining updates are discarded and the associates are updated serially. Each update only depends on the distance
+ * matrix and on the associates list, so the ranks are exactly the same as those of the serial loop.
+ *
+ * The speculation pays off when consecutive eliminations rarely share associates, as in the sparse regions of large
+ * folds. It is not used for the remoteness functions with the ordinal combination strategy, since each elimination
+ * changes the weights of all instances.
+ */
+class SpeculativeElimination {
+    private final Fold fold;
+    private final ParametersManager params;
+    private final int numCandidates;
+
+    private final ArrayDeque<Speculation> speculations = new ArrayDeque<>(); // in the expected order of elimination
+
+    /**
+     * Update computed for an instance expected to be eliminated.
+     */
+    private static final class Speculation {
+        final Instance candidate;
+        final AssociatesUpdate update; // null if the update can only be computed after the previous eliminations
+
+        Speculation(Instance candidate, AssociatesUpdate update) {
+            this.candidate = candidate;
+            this.update = update;
+        }
+    }
+
+    /**
+     * @param fold The fold whose instances are being ranked.
+     * @param params Experiment parameters.
+     */
+    SpeculativeElimination(Fold fold, ParametersManager params) {
+        this.fold = fold;
+        this.params = params;
+        this.numCandidates = params.getSpeculatedEliminations();
+    }
+
+    /**
+     * Updates the associates of an eliminated instance, after its traces were cleared and the distance matrix updated,
+     * and speculates the next eliminations if there are no speculations left.
+     * @param eliminated The instance just eliminated.
+     * @param numUpdatesLeft Number of eliminations after this one whose associates will be updated.
+     */
+    void updateAssociatesWeights(Instance eliminated, int numUpdatesLeft) {
+        Speculation speculation = speculations.poll();
+
+        if (speculation != null && speculation.candidate == eliminated && speculation.update != null &&
+                speculation.update.getAssociates().equals(eliminated.getAssociates())) {
+            speculation.update.apply(fold);
+        } else {
+            // the remaining speculations assumed a different sequence of eliminations
+            int numRollbacks = speculations.size() + (speculation != null ? 1 : 0);
+            fold.getMetrics().add(Metrics.Counter.SPECULATION_ROLLBACKS, numRollbacks);
+            speculations.clear();
+
+            InstanceWeighting.updateAssociatesWeights(fold, eliminated, params);
+        }
+
+        if (speculations.isEmpty()) speculate(Math.min(numCandidates, numUpdatesLeft));
+    }
+
+    /**
+     * Computes the updates of the instances with the smallest weights, each one in a different thread.
+     * @param numSpeculations Maximum number of updates computed.
+     */
+    private void speculate(int numSpeculations) {
+        if (numSpeculations < 1) return;
+
+        List<Instance> candidates = fold.getInstsSmallestWeights(numSpeculations);
+        Speculation[] newSpeculations = new Speculation[candidates.size()];
+
+        Utils.parallelFor(candidates.size(), params.getNumThreads(), j -> {
+            Instance candidate = candidates.get(j);
+            List<Instance> associates = new ArrayList<>(candidate.getAssociates());
+
+            // this candidate and the previous ones are considered eliminated
+            int[] excludedIds = new int[j + 1];
+            for (int i = 0; i <= j; i++)
+                excludedIds[i] = candidates.get(i).getId();
+
+            /* An associate that is eliminated before the candidate has its own distances set to infinite, which the
+            search does not anticipate, so its update waits for the serial loop. */
+            for (int i = 0; i <= j; i++) {
+                if (associates.contains(candidates.get(i))) {
+                    newSpeculations[j] = new Speculation(candidate, null);
+                    return;
+                }
+            }
+
+            newSpeculations[j] = new Speculation(candidate,
+                    new AssociatesUpdate(fold, associates, excludedIds, true, params, 1));
+        });
+
+        for (Speculation speculation : newSpeculations)
+            speculations.add(speculation);
+    }
+}
@@ -1,9 +1,26 @@
 package edu.isr.data;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
 /**
  * Contains methods for dealing with miscellaneous tasks.
  */
 class Utils {
+    // shared by all parallel loops, so the worker threads are not recreated each time (one pool per number of threads)
+    private static final Map<Integer, ForkJoinPool> pools = new HashMap<>();
+
     /**
      * Measures the distance between a specific point and the origin of the Cartesian coordinate system.
      * @param coordinates Set of coordinates indicating the position of the point.
@@ -41,4 +58,100 @@ class Utils {
 
         return Math.pow(sum, 1 / distMetric);
     }
+
+    /**
+     * Checks whether the distances measured with a metric do not depend on the order of the two points.
+     * {@link #measureDist(double[], double[], int, double)} raises the signed differences between the coordinates to
+     * {@code distMetric}, so the distance from P1 to P2 is the same as the one from P2 to P1 (and both are the
+     * Minkowski distance) only when {@code distMetric} is an even integer. The distances may then be measured once for
+     * both directions, shared between folds and duplicate instances, or measured by the pruned search, always with the
+     * same values as the distance matrix.
+     * @param distMetric Parameter of the parameterized Minkowski metric.
+     * @return true if {@code distMetric} is an even integer.
+     */
+    static boolean isSymmetricMetric(double distMetric) {
+        return distMetric % 2 == 0;
+    }
+
+    /**
+     * Runs a task for each index in [0, {@code numTasks}), splitting the indices among a pool of worker threads. The
+     * tasks must be independent from each other, and each one should only write to its own positions of the output
+     * arrays. Under these conditions, the results do not depend on the number of threads.
+     * @param numTasks Number of tasks.
+     * @param numThreads Number of worker threads. Values smaller than 2 make the tasks run sequentially in the calling
+     *                   thread.
+     * @param task The task, which receives the index it is responsible for.
+     */
+    static void parallelFor(int numTasks, int numThreads, IntConsumer task) {
+        if (numThreads < 2 || numTasks < 2) {
+            for (int i = 0; i < numTasks; i++)
+                task.accept(i);
+            return;
+        }
+
+        getPool(numThreads).invoke(ForkJoinTask.adapt(() -> IntStream.range(0, numTasks).parallel().forEach(task)));
+    }
+
+    /**
+     * Returns the pool with a given number of worker threads, creating it on the first request. Pools are never shut
+     * down, since experiments running at the same time (in server mode) may use different numbers of threads.
+     * @param numThreads Number of worker threads.
+     * @return The pool of worker threads.
+     */
+    private static synchronized ForkJoinPool getPool(int numThreads) {
+        return pools.computeIfAbsent(numThreads, ForkJoinPool::new);
+    }
+
+    /**
+     * Keeps the total size of the files of a cache folder below a limit, deleting the least recently used ones first.
+     * The last use of a file is given by its modification time, which should be updated on every cache hit. Files
+     * deleted concurrently by another process are ignored.
+     * @param folder The cache folder.
+     * @param extension Extension of the cache files. Other files (such as temporary ones) are not considered.
+     * @param maxBytes Maximum total size of the cache files.
+     * @throws IOException If the folder could not be listed.
+     */
+    static void evictLeastRecentlyUsed(Path folder, String extension, long maxBytes) throws IOException {
+        List<Map.Entry<Path, FileTime>> filesToLastUses = new ArrayList<>();
+        long totalBytes = 0;
+
+        try (Stream<Path> files = Files.list(folder)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!file.getFileName().toString().endsWith(extension)) continue;
+
+                try {
+                    FileTime lastUse = Files.getLastModifiedTime(file);
+                    totalBytes += Files.size(file);
+                    filesToLastUses.add(Map.entry(file, lastUse));
+                } catch (IOException e) {
+                    // already deleted by another process
+                }
+            }
+        }
+
+        filesToLastUses.sort(Map.Entry.comparingByValue());
+
+        for (Map.Entry<Path, FileTime> entry : filesToLastUses) {
+            if (totalBytes <= maxBytes) break;
+
+            try {
+                long size = Files.size(entry.getKey());
+                if (Files.deleteIfExists(entry.getKey())) totalBytes -= size;
+            } catch (IOException e) {
+                // already deleted by another process
+            }
+        }
+    }
+
+    /**
+     * Marks a cache file as just used, so it is the last one to be evicted.
+     * @param file The cache file.
+     */
+    static void touch(Path file) {
+        try {
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // the file may have been evicted by another process, which does not affect the current one
+        }
+    }
 }
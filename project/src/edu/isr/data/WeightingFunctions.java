@@ -3,6 +3,8 @@ package edu.isr.data;
 import org.apache.commons.math3.linear.SingularMatrixException;
 import org.apache.commons.math3.stat.regression.OLSMultipleLinearRegression;
 
+import java.util.List;
+
 /**
  * Contains the weighting functions. Each function defines the importance of each instance based on a distance notion.
  */
@@ -14,23 +16,40 @@ class WeightingFunctions {
      * @param functionName Weighting function name.
      * @param distMetric Parameter of the parameterized Minkowski metric. For example, {@code distMetric} = 1 means
      *                   Manhattan distance and {@code distMetric} = 2 means Euclidean distance.
+     * @param metrics Metrics of the fold, where the least-squares estimations are counted.
      * @return The weight value.
      */
-    static double applyWeightingFunction(Instance inst, String functionName, double distMetric) {
+    static double applyWeightingFunction(Instance inst, String functionName, double distMetric, Metrics metrics) {
+        return applyWeightingFunction(inst, inst.getNeighbors(), functionName, distMetric, metrics);
+    }
+
+    /**
+     * Weights an instance using one of the weighting functions, taking a given set of instances as its neighbors instead
+     * of the ones currently registered in the instance. Useful for computing a new weight before the neighbors list of
+     * the instance is actually updated.
+     * @param inst Instance to be weighted.
+     * @param neighbors The neighbors of the instance.
+     * @param functionName Weighting function name.
+     * @param distMetric Parameter of the parameterized Minkowski metric. For example, {@code distMetric} = 1 means
+     *                   Manhattan distance and {@code distMetric} = 2 means Euclidean distance.
+     * @param metrics Metrics of the fold, where the least-squares estimations are counted.
+     * @return The weight value.
+     */
+    static double applyWeightingFunction(Instance inst, List<Instance> neighbors, String functionName,
+                                         double distMetric, Metrics metrics) {
         switch (functionName) {
         case "proximity-x":
-            return getProximityWeight(inst, distMetric, false);
+            return getProximityWeight(inst, neighbors, distMetric, false);
         case "proximity-xy":
-            return getProximityWeight(inst, distMetric, true);
+            return getProximityWeight(inst, neighbors, distMetric, true);
         case "surrounding-x":
-            return getSurroundingWeight(inst, distMetric, false);
+            return getSurroundingWeight(inst, neighbors, distMetric, false);
         case "surrounding-xy":
-            return getSurroundingWeight(inst, distMetric, true);
+            return getSurroundingWeight(inst, neighbors, distMetric, true);
         case "nonlinearity":
-            return getNonLinearityWeight(inst);
+            return getNonLinearityWeight(inst, neighbors, metrics);
         default:
-            System.out.println("Invalid weighting function");
-            return 0.0;
+            throw new IllegalArgumentException("Invalid weighting function: " + functionName + ".");
         }
     }
 
@@ -38,43 +57,47 @@ class WeightingFunctions {
      * Weighs an instance by measuring the average distance to its k nearest neighbors (in the input or in the
      * input-output space).
      * @param inst Instance to be weighted.
+     * @param neighbors The neighbors of the instance.
      * @param distMetric Parameter of the parameterized Minkowski metric. For example, {@code distMetric} = 1 means
      *                   Manhattan distance and {@code distMetric} = 2 means Euclidean distance.
      * @param includeOutput Flag indicating if the output attribute should be included in the weight calculation.
      * @return The weight based on the proximity function.
      */
-    private static double getProximityWeight(Instance inst, double distMetric, boolean includeOutput) {
+    private static double getProximityWeight(Instance inst, List<Instance> neighbors, double distMetric,
+                                             boolean includeOutput) {
         double[] instCoordinates = includeOutput ? inst.getAllAttrs() : inst.getInput();
         int numDimensions = instCoordinates.length;
 
         double weight = 0;
 
         // sums up the distances from the instance to its k nearest neighbors
-        for (Instance neighbor : inst.getNeighbors()) {
+        for (Instance neighbor : neighbors) {
             double[] neighborCoordinates = includeOutput ? neighbor.getAllAttrs() : neighbor.getInput();
 
             weight += Utils.measureDist(instCoordinates, neighborCoordinates, numDimensions, distMetric);
         }
 
-        return weight / inst.getNeighbors().size();
+        return weight / neighbors.size();
     }
 
     /**
      * Weighs an instance by measuring the average length of the vectors pointing from the instance to its k nearest
      * neighbors (in the input or in the input-output space).
      * @param inst Instance to be weighted.
+     * @param neighbors The neighbors of the instance.
      * @param distMetric Parameter of the parameterized Minkowski metric. For example, {@code distMetric} = 1 means
      *                   Manhattan distance and {@code distMetric} = 2 means Euclidean distance.
      * @param includeOutput Flag indicating if the output attribute should be included in the weight calculation.
      * @return The weight based on the surrounding function.
      */
-    private static double getSurroundingWeight(Instance inst, double distMetric, boolean includeOutput) {
+    private static double getSurroundingWeight(Instance inst, List<Instance> neighbors, double distMetric,
+                                               boolean includeOutput) {
         double[] instCoordinates = includeOutput ? inst.getAllAttrs() : inst.getInput();
         int numDimensions = instCoordinates.length;
 
         double[] resultant = new double[numDimensions];
 
-        for (Instance neighbor : inst.getNeighbors()) {
+        for (Instance neighbor : neighbors) {
             double[] neighborCoordinates = includeOutput ? neighbor.getAllAttrs() : neighbor.getInput();
 
             // sums up the distance between the instance and its neighbor regarding one specific coordinate
@@ -84,24 +107,26 @@ class WeightingFunctions {
 
 
         double weight = Utils.measureDist(resultant, numDimensions, distMetric); // length of the resultant vector
-        return weight / inst.getNeighbors().size();
+        return weight / neighbors.size();
     }
 
     /**
      * Weighs an instance by measuring its distance from a least-squares hyperplane passing through its k nearest
      * neighbors (always using Euclidean distance and including the output attribute in the weight calculation).
      * @param inst Instance to be weighted.
+     * @param neighbors The neighbors of the instance.
+     * @param metrics Metrics of the fold, where the least-squares estimations are counted.
      * @return The weight based on the non-linearity function.
      */
-    private static double getNonLinearityWeight(Instance inst) {
-        int numNeighbors = inst.getNeighbors().size();
+    private static double getNonLinearityWeight(Instance inst, List<Instance> neighbors, Metrics metrics) {
+        int numNeighbors = neighbors.size();
 
         double[][] xValues = new double[numNeighbors][];
         double[] yValues = new double[numNeighbors];
 
         // gets the position of each neighbor
         for (int i = 0; i < numNeighbors; i++) {
-            Instance neighbor = inst.getNeighbors().get(i);
+            Instance neighbor = neighbors.get(i);
             xValues[i] = neighbor.getInput();
             yValues[i] = neighbor.getOutput();
         }
@@ -114,8 +139,11 @@ class WeightingFunctions {
 
         double[] hyperPlaneParams;
         try {
+            metrics.increment(Metrics.Counter.OLS_SOLVES);
             hyperPlaneParams = regression.estimateRegressionParameters();
         } catch (SingularMatrixException e) {
+            metrics.increment(Metrics.Counter.SINGULAR_FALLBACKS);
+
             /* When this exception occurs, there are multiple planes that can pass across all the points. In the
             specific context of the nonlinearity weighting function, a singular matrix exception indicates that the
             instance and all its neighbors are aligned with each other. In other words, with a single straight line, we